@@ -1,5 +1,7 @@
 
 import com.sun.source.doctree.DocCommentTree;
+import com.sun.source.doctree.DocTree;
+import com.sun.source.doctree.UnknownBlockTagTree;
 import com.sun.source.tree.ClassTree;
 import com.sun.source.tree.CompilationUnitTree;
 import com.sun.source.tree.MethodTree;
@@ -8,27 +10,96 @@ import com.sun.source.tree.PrimitiveTypeTree;
 import com.sun.source.util.DocTrees;
 import com.sun.source.util.JavacTask;
 import com.sun.source.util.SimpleTreeVisitor;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
 import com.sun.source.util.TreePath;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.Cleaner;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.net.StandardProtocolFamily;
+import java.net.URI;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.MessageFormat;
+import java.time.Duration;
 import java.util.*;
-import java.util.function.BiPredicate;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.type.TypeKind;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.DiagnosticListener;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
 import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
 import javax.tools.ToolProvider;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 /**
  * Driver for all the koan files. Execute with java directly.
+ *
+ * What is not private is used by the benchmarks in bench/.
  */
 public class Main {
 
@@ -36,489 +107,3633 @@ public class Main {
     private static final Path HELPER_FILES_LISTFILE = KOAN_SOURCE_FOLDER.resolve("HelperFiles.txt");
     private static final Path KOAN_FILES_LISTFILE = KOAN_SOURCE_FOLDER.resolve("KoanFiles.txt");
     private static final Path CLASSPATH = Paths.get("build");
+    private static final String COMPILE_CACHE_FILE = "koans.index";
+    private static final String GRADE_LOG_FILE = "grade.log";
+    private static final String PROGRESS_JOURNAL_FILE = "progress.journal";
+    private static final String JUNIT_REPORT_FILE = "TEST-koans.xml";
+    private static final String JSON_REPORT_FILE = "koans-report.json";
 
-    private static final ColorLogger LOG = new ColorLogger();
+    // How a run ends: all the selected koans done, some not, or not run at all.
+    private static final int EXIT_DONE = 0;
+    private static final int EXIT_FAILED = 1;
+    private static final int EXIT_ERROR = 2;
 
-    private static class ColorLogger {
+    // An editor saving a file can raise several events, wait for them to settle.
+    private static final long SETTLE_QUIET_MILLIS = 25;
+    private static final long SETTLE_MAX_MILLIS = 250;
 
-        private static Logger log;
+    // Options common to every javac invocation, -cp and -d are added per task.
+    private static final List<String> COMPILER_OPTIONS
+            = List.of("-g", "-Werror", "-Xdiags:verbose", "-Xlint", "-Xmaxerrs", "1");
+    // A batch needs the errors of every file, to know which ones failed.
+    private static final List<String> BATCH_OPTIONS = List.of("-Xmaxerrs", "1000");
 
-        public ColorLogger() {
+    private static final Reporter LOG = new Reporter();
 
-            System.setProperty(
-                    "java.util.logging.SimpleFormatter.format", "%4$s : %5$s%6$s%n");
-            this.log = Logger.getAnonymousLogger();
+    /**
+     * Where the runner reports to. Each report is put on a queue as it is,
+     * a line with its arguments or a Block of lines, and a thread of the
+     * reporter formats whatever is queued and writes it in one go, so the
+     * runner never waits on the console, and a block comes out in one
+     * piece. On a terminal, failures are red and koans done are green. In
+     * JSON lines mode only the events are written, one JSON object a line,
+     * for scripts and dashboards to read.
+     */
+    static class Reporter implements AutoCloseable {
+
+        private static final String RED = "\u001B[31m";
+        private static final String GREEN = "\u001B[32m";
+        private static final String RESET = "\u001B[0m";
+
+        private enum Kind {
+            INFO, SEVERE, DONE
+        }
+
+        private record Line(Kind kind, String fmt, Object[] args, /*@Nullable*/ Throwable thrown) {
+
+        }
+
+        private record JsonEvent(String type, Object[] pairs) {
+
+        }
+
+        // Ends the writer thread, once what was queued before it is written.
+        private static final Object STOP = new Object();
+
+        private final BlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+        private final Writer text;
+        private final Writer json;
+        private final boolean color;
+        private volatile boolean jsonLines;
+        // The reporter a deferred one hands on to.
+        private final /*@Nullable*/ Reporter target;
+
+        /**
+         * The console: the report on stderr, in colour on a terminal, and
+         * the JSON lines on stdout.
+         */
+        public Reporter() {
+            this(new OutputStreamWriter(System.err, System.err.charset()),
+                    new OutputStreamWriter(System.out, System.out.charset()),
+                    System.console() != null && System.getenv("NO_COLOR") == null
+                    && !"dumb".equals(System.getenv("TERM")));
+        }
+
+        /**
+         * Everything to out, without colours.
+         */
+        public Reporter(OutputStream out) {
+            this(new OutputStreamWriter(out, StandardCharsets.UTF_8), null, false);
+        }
+
+        private Reporter(Writer text, /*@Nullable*/ Writer json, boolean color) {
+            this.text = text;
+            this.json = json != null ? json : text;
+            this.color = color;
+            this.target = null;
+            Thread.ofVirtual().name("reporter").start(this::write);
+        }
+
+        private Reporter(Reporter target) {
+            this.text = target.text;
+            this.json = target.json;
+            this.color = target.color;
+            this.jsonLines = target.jsonLines;
+            this.target = target;
+        }
+
+        /**
+         * A reporter which holds on to what is reported to it, until replay
+         * hands it on to this one, so work done at the same time can be
+         * reported in order.
+         */
+        public Reporter deferred() {
+            return new Reporter(this);
+        }
+
+        /**
+         * Hand on what was held back, in one piece. Nothing is held back by
+         * a reporter which is not deferred.
+         */
+        public void replay() {
+            if (this.target != null) {
+                List<Object> held = new ArrayList<>();
+                this.queue.drainTo(held);
+                this.target.queue.addAll(held);
+            }
+        }
+
+        public void setJsonLines(boolean jsonLines) {
+            this.jsonLines = jsonLines;
+        }
+
+        public void severe(String fmt, Object... args) {
+            line(new Line(Kind.SEVERE, fmt, args, null));
+        }
+
+        public void severe(String msg, Throwable t) {
+            line(new Line(Kind.SEVERE, msg, new Object[0], t));
+        }
+
+        public void info(String fmt, Object... args) {
+            line(new Line(Kind.INFO, fmt, args, null));
+        }
+
+        public void done(String fmt, Object... args) {
+            line(new Line(Kind.DONE, fmt, args, null));
+        }
+
+        public Block block() {
+            return new Block();
+        }
+
+        /**
+         * An event for the JSON lines: its type, and then names and values.
+         * A value is a string, a number, a boolean, null, or a collection or
+         * map of them, and anything else is written as a string.
+         */
+        public void event(String type, Object... pairs) {
+            if (this.jsonLines) {
+                this.queue.add(new JsonEvent(type, pairs));
+            }
+        }
+
+        /**
+         * Wait until all that is reported so far is written.
+         */
+        public void flush() {
+            if (this.target != null) {
+                return;
+            }
+            CountDownLatch written = new CountDownLatch(1);
+            this.queue.add(written);
+            try {
+                written.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (this.target != null) {
+                return;
+            }
+            // Written up to the latch, and then the writer is done with.
+            CountDownLatch written = new CountDownLatch(1);
+            this.queue.add(written);
+            this.queue.add(STOP);
+            try {
+                written.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void line(Line line) {
+            if (!this.jsonLines) {
+                this.queue.add(line);
+            }
+        }
+
+        /**
+         * Lines which are reported together.
+         */
+        final class Block {
+
+            private final List<Line> lines = new ArrayList<>();
+
+            public Block severe(String fmt, Object... args) {
+                this.lines.add(new Line(Kind.SEVERE, fmt, args, null));
+                return this;
+            }
+
+            public Block severe(String msg, Throwable t) {
+                this.lines.add(new Line(Kind.SEVERE, msg, new Object[0], t));
+                return this;
+            }
+
+            public Block info(String fmt, Object... args) {
+                this.lines.add(new Line(Kind.INFO, fmt, args, null));
+                return this;
+            }
+
+            public void report() {
+                if (!Reporter.this.jsonLines) {
+                    Reporter.this.queue.add(List.copyOf(this.lines));
+                }
+            }
+        }
+
+        private void write() {
+            List<Object> batch = new ArrayList<>();
+            StringBuilder textOut = new StringBuilder();
+            StringBuilder jsonOut = new StringBuilder();
+            while (true) {
+                try {
+                    batch.add(this.queue.take());
+                } catch (InterruptedException e) {
+                    return;
+                }
+                this.queue.drainTo(batch);
+                for (Object item : batch) {
+                    switch (item) {
+                        case Line line ->
+                            format(textOut, line);
+                        case List<?> block -> {
+                            for (Object line : block) {
+                                format(textOut, (Line) line);
+                            }
+                        }
+                        case JsonEvent event ->
+                            formatJson(jsonOut, event);
+                        default -> {
+                        }
+                    }
+                }
+                try {
+                    if (!textOut.isEmpty()) {
+                        this.text.write(textOut.toString());
+                        this.text.flush();
+                    }
+                    if (!jsonOut.isEmpty()) {
+                        this.json.write(jsonOut.toString());
+                        this.json.flush();
+                    }
+                } catch (IOException e) {
+                    // Nobody is listening anymore, as a client gone away.
+                }
+                boolean stop = false;
+                for (Object item : batch) {
+                    if (item instanceof CountDownLatch written) {
+                        written.countDown();
+                    }
+                    stop |= item == STOP;
+                }
+                if (stop) {
+                    return;
+                }
+                batch.clear();
+                textOut.setLength(0);
+                jsonOut.setLength(0);
+            }
+        }
+
+        private void format(StringBuilder out, Line line) {
+            String colour = !this.color ? null
+                    : line.kind() == Kind.SEVERE ? RED
+                    : line.kind() == Kind.DONE ? GREEN
+                    : null;
+            if (colour != null) {
+                out.append(colour);
+            }
+            out.append(line.kind() == Kind.SEVERE ? "SEVERE" : "INFO").append(" : ");
+            String message = line.fmt();
+            if (line.args().length > 0) {
+                try {
+                    message = MessageFormat.format(line.fmt(), line.args());
+                } catch (IllegalArgumentException e) {
+                    // Not a format after all, so it is shown as it is.
+                }
+            }
+            out.append(message);
+            if (line.thrown() != null) {
+                StringWriter trace = new StringWriter();
+                line.thrown().printStackTrace(new PrintWriter(trace));
+                out.append(System.lineSeparator()).append(trace.toString().stripTrailing());
+            }
+            if (colour != null) {
+                out.append(RESET);
+            }
+            out.append(System.lineSeparator());
+        }
+
+        private static void formatJson(StringBuilder out, JsonEvent event) {
+            out.append("{\"event\":");
+            jsonValue(out, event.type());
+            for (int i = 0; i + 1 < event.pairs().length; i += 2) {
+                out.append(',');
+                jsonValue(out, String.valueOf(event.pairs()[i]));
+                out.append(':');
+                jsonValue(out, event.pairs()[i + 1]);
+            }
+            out.append("}\n");
+        }
+
+        private static void jsonValue(StringBuilder out, /*@Nullable*/ Object value) {
+            switch (value) {
+                case null ->
+                    out.append("null");
+                case Boolean b ->
+                    out.append(b);
+                case Integer n ->
+                    out.append(n);
+                case Long n ->
+                    out.append(n);
+                case Map<?, ?> values -> {
+                    out.append('{');
+                    String sep = "";
+                    for (var e : values.entrySet()) {
+                        out.append(sep);
+                        jsonValue(out, String.valueOf(e.getKey()));
+                        out.append(':');
+                        jsonValue(out, e.getValue());
+                        sep = ",";
+                    }
+                    out.append('}');
+                }
+                case Collection<?> values -> {
+                    out.append('[');
+                    String sep = "";
+                    for (Object v : values) {
+                        out.append(sep);
+                        jsonValue(out, v);
+                        sep = ",";
+                    }
+                    out.append(']');
+                }
+                default -> {
+                    out.append('"');
+                    for (char c : value.toString().toCharArray()) {
+                        switch (c) {
+                            case '"' ->
+                                out.append("\\\"");
+                            case '\\' ->
+                                out.append("\\\\");
+                            case '\n' ->
+                                out.append("\\n");
+                            case '\r' ->
+                                out.append("\\r");
+                            case '\t' ->
+                                out.append("\\t");
+                            default -> {
+                                if (c < 0x20) {
+                                    out.append(String.format("\\u%04x", (int) c));
+                                } else {
+                                    out.append(c);
+                                }
+                            }
+                        }
+                    }
+                    out.append('"');
+                }
+            }
+        }
+    }
+
+    /**
+     * The koans to run, from the arguments which are not switches, and the
+     * --level switch. An argument is part of the path of a koan file, as
+     * intro/IntroAssert, or of a class name, as decl.PrimitiveTypes, and can
+     * name a single koan method, as decl.PrimitiveTypes::chars. A koan is
+     * selected when any of the arguments selects it, and it has the level.
+     */
+    private record Selection(List<String> selectors, /*@Nullable*/ String level) {
+
+        /**
+         * Whether the file can have selected koans, which is all that can be
+         * told without knowing the koans in it.
+         */
+        public boolean selectsFile(Path srcFile) {
+            if (this.selectors.isEmpty()) {
+                return true;
+            }
+            String path = srcFile.toString();
+            String dotted = path.replace(File.separatorChar, '.');
+            for (String selector : this.selectors) {
+                String part = classPart(selector);
+                if (path.contains(part) || dotted.contains(part)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Whether the koans in a file are needed to know which are selected,
+         * and not only the file name.
+         */
+        public boolean byKoan() {
+            return this.level != null || this.selectors.stream().anyMatch(s -> s.contains("::"));
+        }
+
+        public boolean selectsKoan(String className, String name, String level) {
+            if (this.level != null && !this.level.equalsIgnoreCase(level)) {
+                return false;
+            }
+            if (this.selectors.isEmpty()) {
+                return true;
+            }
+            // A selector picks its own class, and only the koan it names if it has one.
+            for (String selector : this.selectors) {
+                int sep = selector.indexOf("::");
+                if (className.contains(dottedClassPart(selector))
+                        && (sep < 0 || selector.substring(sep + 2).equals(name))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * The selectors and the level, as they were given.
+         */
+        public String describe() {
+            List<String> args = new ArrayList<>(this.selectors);
+            if (this.level != null) {
+                args.add("--level=" + this.level);
+            }
+            return args.isEmpty() ? "the list files" : String.join(" ", args);
+        }
+
+        private static String classPart(String selector) {
+            int sep = selector.indexOf("::");
+            return sep < 0 ? selector : selector.substring(0, sep);
+        }
+
+        // The class part as in a class name, for a path such as decl/PrimitiveTypes.java.
+        private static String dottedClassPart(String selector) {
+            String part = classPart(selector).replace('/', '.').replace(File.separatorChar, '.');
+            return part.endsWith(".java") ? part.substring(0, part.length() - ".java".length()) : part;
+        }
+    }
+
+    /**
+     * Command line switches. Any argument which is not a switch selects the
+     * koans to run, see Selection.
+     */
+    static class Options {
+
+        private boolean inMemory;
+        private boolean batch;
+        private boolean parallel;
+        private boolean daemon;
+        private boolean client;
+        private boolean grade;
+        private /*@Nullable*/ Path exportDocs;
+        private boolean once;
+        private Path reports = CLASSPATH;
+        private /*@Nullable*/ String level;
+        private boolean json;
+        private boolean memoryStats;
+        private boolean concurrent;
+        // The budget of each koan method, wall clock and CPU time.
+        private long timeoutMillis = 10_000;
+        private long cpuTimeoutMillis = 5_000;
+        private Path socket = Paths.get(System.getProperty("java.io.tmpdir"),
+                "java-koans-" + System.getProperty("user.name") + ".sock");
+        private final List<String> selectors = new ArrayList<>();
+
+        /**
+         * Whether the classes, and so the compile cache and the progress,
+         * are kept in memory. Grading, and running once, start from nothing,
+         * as what is in the build folder of a checkout can not be trusted: a
+         * progress journal saying a koan passed is easily written by hand.
+         */
+        boolean classesInMemory() {
+            return this.inMemory || this.grade || this.once;
+        }
+
+        public static /*@Nullable*/ Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                // Switches with a value are written --name=value
+                int eq = arg.indexOf('=');
+                String value = arg.startsWith("--") && eq > 0 ? arg.substring(eq + 1) : null;
+                switch (value != null ? arg.substring(0, eq) : arg) {
+                    case "--in-memory" ->
+                        options.inMemory = true;
+                    case "--batch" ->
+                        options.batch = true;
+                    case "--parallel" ->
+                        options.parallel = true;
+                    case "--daemon" ->
+                        options.daemon = true;
+                    case "--client" ->
+                        options.client = true;
+                    case "--grade" ->
+                        options.grade = true;
+                    case "--json" ->
+                        options.json = true;
+                    case "--memory-stats" ->
+                        options.memoryStats = true;
+                    case "--concurrent" ->
+                        options.concurrent = true;
+                    case "--socket" -> {
+                        if (value == null || value.isEmpty()) {
+                            LOG.severe("Option {0} needs a value, as {0}=<path>", arg);
+                            return null;
+                        }
+                        options.socket = Paths.get(value);
+                    }
+                    case "--once" ->
+                        options.once = true;
+                    case "--reports" -> {
+                        if (value == null || value.isEmpty()) {
+                            LOG.severe("Option {0} needs a value, as {0}=<folder>", arg);
+                            return null;
+                        }
+                        options.reports = Paths.get(value);
+                    }
+                    case "--export-docs" -> {
+                        if (value == null || value.isEmpty()) {
+                            LOG.severe("Option {0} needs a value, as {0}=<file>", arg);
+                            return null;
+                        }
+                        options.exportDocs = Paths.get(value);
+                    }
+                    case "--level" -> {
+                        if (value == null || value.isEmpty()) {
+                            LOG.severe("Option {0} needs a value, as {0}=beginner", arg);
+                            return null;
+                        }
+                        options.level = value;
+                    }
+                    case "--timeout", "--cpu-timeout" -> {
+                        long millis;
+                        try {
+                            millis = Long.parseLong(value == null ? "" : value);
+                        } catch (NumberFormatException e) {
+                            millis = 0;
+                        }
+                        if (millis <= 0) {
+                            LOG.severe("Option {0} needs a number of milliseconds, as {0}=<millis>", arg);
+                            return null;
+                        }
+                        if (arg.startsWith("--timeout")) {
+                            options.timeoutMillis = millis;
+                        } else {
+                            options.cpuTimeoutMillis = millis;
+                        }
+                    }
+                    default -> {
+                        if (arg.startsWith("--")) {
+                            LOG.severe("Unknown option {0}", arg);
+                            return null;
+                        }
+                        options.selectors.add(arg);
+                    }
+                }
+            }
+            List<String> modes = new ArrayList<>();
+            if (options.grade) {
+                modes.add("--grade");
+            }
+            if (options.daemon) {
+                modes.add("--daemon");
+            }
+            if (options.client) {
+                modes.add("--client");
+            }
+            if (options.once) {
+                modes.add("--once");
+            }
+            if (options.exportDocs != null) {
+                modes.add("--export-docs");
+            }
+            if (!atMostOne("way of running", modes)) {
+                return null;
+            }
+            List<String> compiles = new ArrayList<>();
+            if (options.batch) {
+                compiles.add("--batch");
+            }
+            if (options.parallel) {
+                compiles.add("--parallel");
+            }
+            if (!atMostOne("way of compiling", compiles)) {
+                return null;
+            }
+            return options;
+        }
+
+        /**
+         * Whether at most one of options which exclude each other was given,
+         * saying which ones were when more were.
+         */
+        private static boolean atMostOne(String what, List<String> given) {
+            if (given.size() > 1) {
+                LOG.severe("Options {0} can not be used together, each is a {1}", String.join(", ", given), what);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    public static void main(String[] args) {
+        int status;
+        try {
+            status = run(args);
+        } finally {
+            LOG.flush();
+        }
+        if (status != EXIT_DONE) {
+            System.exit(status);
+        }
+    }
+
+    private static int run(String[] args) {
+
+        Options options = Options.parse(args);
+        if (options == null) {
+            return EXIT_ERROR;
+        }
+        LOG.setJsonLines(options.json);
+        if (options.client) {
+            return runClient(options.socket, Paths.get("").toAbsolutePath());
+        }
+        if (options.exportDocs != null) {
+            try (CompilationService compiler = new CompilationService()) {
+                exportDocs(compiler, readList(KOAN_SOURCE_FOLDER, KOAN_FILES_LISTFILE), options.exportDocs);
+            } catch (Exception e) {
+                LOG.severe("Caught unexpected exception", e);
+                return EXIT_ERROR;
+            }
+            return EXIT_DONE;
+        }
+        if (options.grade) {
+            try (CompilationService compiler = new CompilationService()) {
+                grade(options.selectors.stream().map(Paths::get).toList(), compiler, options);
+            } catch (Exception e) {
+                LOG.severe("Caught unexpected exception", e);
+                return EXIT_ERROR;
+            }
+            return EXIT_DONE;
+        }
+        if (options.daemon) {
+            try (CompilationService compiler = new CompilationService()) {
+                new Daemon(options, compiler).serve();
+            } catch (Exception e) {
+                LOG.severe("Caught unexpected exception", e);
+                return EXIT_ERROR;
+            }
+            return EXIT_DONE;
+        }
+        // In memory, nothing goes to the build directory.
+        if (!options.inMemory && !checkBuildDirectory(LOG, CLASSPATH)) {
+            return EXIT_ERROR;
+        }
+
+        Selection selection = new Selection(options.selectors, options.level);
+        ClassStore classStore = options.classesInMemory()
+                ? new MemoryClasses(new ConcurrentHashMap<>())
+                : new DiskClasses(CLASSPATH);
+        try (CompilationService compiler = new CompilationService()) {
+            Main runner = new Main(HELPER_FILES_LISTFILE, KOAN_FILES_LISTFILE, KOAN_SOURCE_FOLDER, CLASSPATH,
+                    compiler, classStore, selection, options, LOG);
+            if (options.once) {
+                return runner.runOnce();
+            }
+            runner.runKoans();
+        } catch (Exception e) {
+            LOG.severe("Caught unexpected exception", e);
+            return EXIT_ERROR;
+        }
+        return EXIT_DONE;
+    }
+
+    private static boolean checkBuildDirectory(Reporter log, Path classPath) {
+        if (Files.exists(classPath)) {
+            if (!Files.isDirectory(classPath)) {
+                log.severe("Build directory {0} is not a directory !", classPath);
+                return false;
+            }
+        } else {
+            if (!classPath.toFile().mkdirs()) {
+                log.severe("Error creating Build directory {0} !", classPath);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keeps running with a warm compiler, and runs the koans of a folder for
+     * each client connecting to the socket. A client sends the folder, which
+     * has the koans folder and the build folder in it, on one line, and gets
+     * back the output of one pass over the koans. The runner of each folder
+     * is kept, along with what it has cached, for the next request.
+     */
+    private static class Daemon {
+
+        /**
+         * The runner of a folder, and the lock held for a pass over it.
+         * Requests are handled on virtual threads, which a lock, unlike
+         * synchronized, does not pin to their carrier while they wait. A
+         * runner evicted while a request waited for it is not used again.
+         */
+        private static class Runner {
+
+            private final Main main;
+            private final Lock lock = new ReentrantLock();
+            // Guarded by lock.
+            private boolean evicted;
+
+            Runner(Main main) {
+                this.main = main;
+            }
+        }
+
+        // Each runner watches its folder, and inotify watches are limited, so
+        // only the runners of the folders asked about last are kept.
+        private static final int MAX_RUNNERS = 32;
+
+        private final Options options;
+        private final CompilationService compiler;
+        // In the order they were last asked for.
+        private final Map<Path, Runner> runners = new LinkedHashMap<>(16, 0.75f, true);
+        private final Lock runnersLock = new ReentrantLock();
+
+        public Daemon(Options options, CompilationService compiler) {
+            this.options = options;
+            this.compiler = compiler;
+        }
+
+        public void serve() throws IOException {
+            Files.deleteIfExists(this.options.socket);
+            try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+                server.bind(UnixDomainSocketAddress.of(this.options.socket));
+                LOG.info("Waiting for requests on {0}", this.options.socket);
+                while (true) {
+                    SocketChannel client = server.accept();
+                    Thread.ofVirtual().start(() -> handle(client));
+                }
+            } finally {
+                Files.deleteIfExists(this.options.socket);
+            }
+        }
+
+        private void handle(SocketChannel client) {
+            // The report is written out before the client is closed.
+            try (client; Reporter log = new Reporter(Channels.newOutputStream(client))) {
+                log.setJsonLines(this.options.json);
+                try {
+                    var in = new BufferedReader(new InputStreamReader(Channels.newInputStream(client),
+                            StandardCharsets.UTF_8));
+                    String line = in.readLine();
+                    if (line == null || line.isBlank()) {
+                        log.severe("Expected the folder to run the koans in.");
+                        return;
+                    }
+                    runPass(log, Paths.get(line.trim()).toAbsolutePath().normalize());
+                } catch (Exception e) {
+                    // The client is told too, or all it gets is nothing.
+                    log.severe("Caught unexpected exception", e);
+                    LOG.severe("Caught unexpected exception", e);
+                }
+            } catch (Exception e) {
+                LOG.severe("Caught unexpected exception", e);
+            }
+        }
+
+        private void runPass(Reporter log, Path folder) throws Exception {
+            while (true) {
+                Runner runner = runner(log, folder);
+                if (runner == null) {
+                    return;
+                }
+                // One pass at a time per folder, the output goes to this client.
+                runner.lock.lock();
+                try {
+                    if (runner.evicted) {
+                        continue;
+                    }
+                    runner.main.log = log;
+                    if (runner.main.runPass(runner.main.drainSourceEvents())) {
+                        log.done("Congratulations, you finished koans!");
+                    }
+                    return;
+                } finally {
+                    runner.lock.unlock();
+                }
+            }
+        }
+
+        private /*@Nullable*/ Runner runner(Reporter log, Path folder) throws IOException {
+            this.runnersLock.lock();
+            try {
+                Runner runner = this.runners.get(folder);
+                if (runner == null) {
+                    Main main = forFolder(log, folder, this.compiler, this.options);
+                    if (main != null) {
+                        runner = new Runner(main);
+                        this.runners.put(folder, runner);
+                        evictIdle();
+                    }
+                }
+                return runner;
+            } finally {
+                this.runnersLock.unlock();
+            }
+        }
+
+        /**
+         * Drop the runners asked for longest ago, beyond MAX_RUNNERS, along
+         * with their watchers. A runner in the middle of a pass is left for
+         * next time.
+         */
+        private void evictIdle() throws IOException {
+            var it = this.runners.values().iterator();
+            while (this.runners.size() > MAX_RUNNERS && it.hasNext()) {
+                Runner runner = it.next();
+                if (runner.lock.tryLock()) {
+                    try {
+                        runner.evicted = true;
+                        runner.main.closeWatcher();
+                        it.remove();
+                    } finally {
+                        runner.lock.unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A runner for the koans folder and build folder in folder, with a class
+     * store of its own.
+     */
+    static /*@Nullable*/ Main forFolder(Reporter log, Path folder, CompilationService compiler, Options options)
+            throws IOException {
+        Path sourceFolder = folder.resolve(KOAN_SOURCE_FOLDER);
+        Path classPath = folder.resolve(CLASSPATH);
+        if (!Files.isDirectory(sourceFolder)) {
+            log.severe("No {0} folder in {1}", KOAN_SOURCE_FOLDER, folder);
+            return null;
+        }
+        if (!options.inMemory && !checkBuildDirectory(log, classPath)) {
+            return null;
+        }
+        ClassStore classStore = options.classesInMemory()
+                ? new MemoryClasses(new ConcurrentHashMap<>())
+                : new DiskClasses(classPath);
+        return new Main(sourceFolder.resolve(HELPER_FILES_LISTFILE.getFileName()),
+                sourceFolder.resolve(KOAN_FILES_LISTFILE.getFileName()),
+                sourceFolder, classPath, compiler, classStore, new Selection(List.of(), options.level), options, log);
+    }
+
+    /**
+     * What one pass got done for a student.
+     */
+    private record Grade(Path folder, boolean finished, int koansDone, /*@Nullable*/ String stoppedAt, long millis) {
+    }
+
+    /**
+     * Run the koans of each folder once, each on a virtual thread of its
+     * own, sharing the compiler, and print a summary line per folder. The
+     * output of each folder is written to grade.log in its build folder,
+     * and dropped when running in memory.
+     */
+    private static void grade(List<Path> folders, CompilationService compiler, Options options)
+            throws InterruptedException, ExecutionException {
+        // Compiling and running is busy work, so more than a folder per core only costs memory.
+        Semaphore slots = new Semaphore(Runtime.getRuntime().availableProcessors());
+        List<Future<Grade>> grades = new ArrayList<>();
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Path folder : folders) {
+                grades.add(executor.submit(() -> {
+                    slots.acquire();
+                    try {
+                        return gradeFolder(folder.toAbsolutePath().normalize(), compiler, options);
+                    } finally {
+                        slots.release();
+                    }
+                }));
+            }
+        }
+        int finished = 0;
+        for (Future<Grade> f : grades) {
+            Grade grade = f.get();
+            LOG.event("grade", "folder", grade.folder(), "finished", grade.finished(), "koansDone", grade.koansDone(),
+                    "stoppedAt", grade.stoppedAt(), "millis", grade.millis());
+            if (grade.finished()) {
+                finished++;
+                LOG.info("PASS {0} : {1} koans done in {2} ms", grade.folder(), grade.koansDone(), grade.millis());
+            } else {
+                LOG.severe("FAIL {0} : {1} koans done in {2} ms, stopped at {3}",
+                        grade.folder(), grade.koansDone(), grade.millis(), grade.stoppedAt());
+            }
+        }
+        LOG.info("Graded {0} folders in {1} ms, {2} finished the koans",
+                folders.size(), (System.nanoTime() - start) / 1_000_000, finished);
+    }
+
+    /**
+     * Write the doc of every koan, in the order of the koan files, to
+     * exportFile, as Markdown if its name ends with .md and as text
+     * otherwise. The files are only parsed, each by a task of its own on
+     * all the cores, and each is written as soon as those before it are.
+     */
+    private static void exportDocs(CompilationService compiler, List<Path> koanFiles, Path exportFile)
+            throws IOException, InterruptedException, ExecutionException {
+        boolean markdown = exportFile.getFileName().toString().endsWith(".md");
+        int threads = Math.max(1, Math.min(koanFiles.size(), Runtime.getRuntime().availableProcessors()));
+        List<Future<TreeVisitor>> parsed = new ArrayList<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads);
+                BufferedWriter out = Files.newBufferedWriter(exportFile, StandardCharsets.UTF_8)) {
+            for (Path srcFile : koanFiles) {
+                parsed.add(executor.submit(() -> parseOnly(compiler, srcFile, new StringWriter())));
+            }
+            for (Future<TreeVisitor> f : parsed) {
+                TreeVisitor koans = f.get();
+                out.write(markdown ? "## " + koans.fullClassName() + "\n\n" : koans.fullClassName() + "\n");
+                for (var nd : koans.methods) {
+                    String doc = exportedDoc(nd.doc().get());
+                    if (markdown) {
+                        out.write("### " + nd.name() + "\n\n" + (doc.isEmpty() ? "" : doc + "\n\n"));
+                    } else {
+                        out.write("    " + nd.name() + "\n");
+                        for (String line : doc.split("\n")) {
+                            out.write(line.isEmpty() ? "\n" : "        " + line + "\n");
+                        }
+                    }
+                }
+                if (!markdown) {
+                    out.write("\n");
+                }
+            }
+        }
+        LOG.info("Exported the docs of {0} koan files to {1}", koanFiles.size(), exportFile);
+    }
+
+    /**
+     * A doc as it is exported. Each line of a doc starts with the space
+     * which followed the '*' in the source, and which is dropped here.
+     */
+    private static String exportedDoc(String doc) {
+        StringBuilder out = new StringBuilder();
+        for (String line : doc.split("\n", -1)) {
+            out.append(line.startsWith(" ") ? line.substring(1) : line).append('\n');
+        }
+        return out.toString().strip();
+    }
+
+    /**
+     * The koans in a file, from parsing it and nothing more.
+     */
+    private static TreeVisitor parseOnly(CompilationService compiler, Path srcFile, StringWriter output)
+            throws IOException {
+        // Nothing is generated, so any class store does.
+        return compiler.withTask(output, null, List.of(), new MemoryClasses(Map.of()), List.of(srcFile), task -> {
+            try {
+                CompilationUnitTree unit = task.parse().iterator().next();
+                return new TreeVisitor(DocTrees.instance(task)).visit(unit);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static Grade gradeFolder(Path folder, CompilationService compiler, Options options) {
+        long start = System.nanoTime();
+        Path classPath = folder.resolve(CLASSPATH);
+        boolean keepLog = !options.inMemory && Files.isDirectory(folder.resolve(KOAN_SOURCE_FOLDER))
+                && checkBuildDirectory(LOG, classPath);
+        try (OutputStream out = keepLog
+                ? Files.newOutputStream(classPath.resolve(GRADE_LOG_FILE))
+                : OutputStream.nullOutputStream();
+                Reporter log = new Reporter(out)) {
+            log.setJsonLines(options.json);
+            Main runner = forFolder(log, folder, compiler, options);
+            if (runner == null) {
+                return new Grade(folder, false, 0, "no koans found", (System.nanoTime() - start) / 1_000_000);
+            }
+            boolean finished = runner.runPass(Set.of());
+            return new Grade(folder, finished, runner.koansDone, runner.stoppedAt, (System.nanoTime() - start) / 1_000_000);
+        } catch (Exception e) {
+            return new Grade(folder, false, 0, e.toString(), (System.nanoTime() - start) / 1_000_000);
+        }
+    }
+
+    /**
+     * Ask the daemon to run the koans in folder, and copy what it says to the
+     * console.
+     *
+     * @return the exit status, EXIT_ERROR if the daemon could not be reached
+     */
+    private static int runClient(Path socket, Path folder) {
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            channel.write(StandardCharsets.UTF_8.encode(folder + "\n"));
+            Channels.newInputStream(channel).transferTo(System.out);
+            System.out.flush();
+            return EXIT_DONE;
+        } catch (IOException e) {
+            LOG.severe("Cannot reach the daemon on {0}: {1}", socket, e.getMessage());
+            return EXIT_ERROR;
+        }
+    }
+
+    private final Path helperFilesListfile;
+    private final Path koanFilesListfile;
+    private final Path koanSourceFolder;
+    private final Path koanClasspath;
+    private final CompilationService compiler;
+    private final ClassStore classStore;
+    private final Selection selection;
+    private final Options options;
+    // Changes for each request in daemon mode.
+    private Reporter log;
+    // None when grading, as a folder is only run once.
+    private final /*@Nullable*/ WatchService watcher;
+    private final SourceInventory inventory;
+    // Content hash of each source file, dropped when the watcher sees it change.
+    private final Map<Path, String> contentHashes = new HashMap<>();
+    private final CompileCache compileCache;
+    private final Progress progress;
+    private final Watchdog watchdog;
+    // Koans run concurrently share it, and one being measured has it to itself.
+    private final ReadWriteLock measuring = new ReentrantReadWriteLock();
+    // The helpers as last compiled: the key of their sources, the source of
+    // each helper class, the other helpers each one refers to, and the ones
+    // which declare constants.
+    private String helpersKey = "";
+    private Map<String, Path> helperClasses = Map.of();
+    private Map<Path, Set<Path>> helperReferences = Map.of();
+    private Set<Path> constantHelpers = Set.of();
+    // The loader of the helper classes, and the koan files loaded under it,
+    // each kept until it changes.
+    private ClassLoader helperLoader = Main.class.getClassLoader();
+    private final Map<Path, KoansFile> loadedKoans = new HashMap<>();
+    // The errors of the koan files which failed to compile, by file.
+    private final Map<Path, CompileFailure> compileFailures = new HashMap<>();
+    // The koans of the files parsed for the selection, and not compiled yet.
+    private final Map<Path, Outline> outlines = new HashMap<>();
+    // How far the last pass got: the koans done, and where it stopped if it did.
+    private int koansDone;
+    private /*@Nullable*/ String stoppedAt;
+    // What the last pass came to for each koan file, for the reports of a run once.
+    private final List<FileReport> fileReports = new ArrayList<>();
+
+    private Main(Path helperFilesListfile,
+            Path koanFilesListFile,
+            Path koanSourceFolder,
+            Path koanClasspath,
+            CompilationService compiler,
+            ClassStore classStore,
+            Selection selection,
+            Options options,
+            Reporter log)
+            throws IOException {
+        this.helperFilesListfile = helperFilesListfile;
+        this.koanFilesListfile = koanFilesListFile;
+        this.koanSourceFolder = koanSourceFolder;
+        this.koanClasspath = koanClasspath;
+        this.compiler = compiler;
+        this.classStore = classStore;
+        this.selection = selection;
+        this.options = options;
+        this.log = log;
+
+        this.watcher = options.grade || options.once ? null : FileSystems.getDefault().newWatchService();
+        this.inventory = new SourceInventory(koanSourceFolder, helperFilesListfile, koanFilesListFile, this.watcher);
+        // In memory the classes are gone on restart, and so is any use of the cache file.
+        // The progress is kept in memory too, as nothing is to be written to disk.
+        boolean onDisk = classStore instanceof DiskClasses;
+        this.compileCache = new CompileCache(classStore,
+                onDisk ? koanClasspath.resolve(COMPILE_CACHE_FILE) : null);
+        this.progress = new Progress(onDisk ? koanClasspath.resolve(PROGRESS_JOURNAL_FILE) : null);
+        this.watchdog = new Watchdog(options.timeoutMillis, options.cpuTimeoutMillis);
+        this.inventory.scan();
+    }
+
+    /**
+     * One javac and its file managers for the whole session. A file manager
+     * keeps what it has read of the platform classes from one compilation to
+     * the next, instead of starting cold for every file. They are not thread
+     * safe, so each running task has one to itself, and there are as many
+     * as there have been tasks running at the same time.
+     */
+    static class CompilationService implements AutoCloseable {
+
+        private final JavaCompiler compiler;
+        private final Deque<StandardJavaFileManager> idle = new ArrayDeque<>();
+        private final List<StandardJavaFileManager> fileManagers = new ArrayList<>();
+
+        public CompilationService() {
+            this.compiler = ToolProvider.getSystemJavaCompiler();
+        }
+
+        /**
+         * Create a javac task for the source files, and hand it to body
+         * to run.
+         */
+        public <T> T withTask(StringWriter output,
+                /*@Nullable*/ DiagnosticListener<? super JavaFileObject> diagnostics,
+                List<String> extraOptions,
+                ClassStore classStore,
+                List<Path> sourceFiles,
+                Function<JavacTask, T> body)
+                throws IOException {
+            String[] fileNames = new String[sourceFiles.size()];
+            for (int j = 0; j < fileNames.length; j++) {
+                fileNames[j] = sourceFiles.get(j).toString();
+            }
+
+            StandardJavaFileManager fileManager = borrow();
+            try {
+                List<String> options = new ArrayList<>();
+                JavaFileManager taskFileManager = switch (classStore) {
+                    case DiskClasses disk -> {
+                        String cp = disk.classPath().toAbsolutePath().toString();
+                        options.addAll(List.of("-cp", cp, "-d", cp));
+                        yield fileManager;
+                    }
+                    case MemoryClasses memory -> {
+                        // The class path is whatever is in memory, and not the default "."
+                        fileManager.setLocationFromPaths(StandardLocation.CLASS_PATH, List.of());
+                        yield new MemoryFileManager(fileManager, memory);
+                    }
+                };
+                options.addAll(COMPILER_OPTIONS);
+                options.addAll(extraOptions);
+                JavacTask task = (JavacTask) this.compiler.getTask(output, taskFileManager,
+                        diagnostics, options, null, fileManager.getJavaFileObjects(fileNames));
+                return body.apply(task);
+            } finally {
+                release(fileManager);
+            }
+        }
+
+        // The most recently used file manager is the warmest.
+        private synchronized StandardJavaFileManager borrow() {
+            StandardJavaFileManager fileManager = this.idle.pollFirst();
+            if (fileManager == null) {
+                fileManager = this.compiler.getStandardFileManager(null, null, null);
+                this.fileManagers.add(fileManager);
+            }
+            return fileManager;
+        }
+
+        private synchronized void release(StandardJavaFileManager fileManager) {
+            this.idle.addFirst(fileManager);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            for (StandardJavaFileManager fileManager : this.fileManagers) {
+                fileManager.close();
+            }
+        }
+    }
+
+    /**
+     * Where the compiled classes are kept, between javac writing them and the
+     * ByteClassLoader defining them.
+     */
+    sealed interface ClassStore permits DiskClasses, MemoryClasses {
+
+        /*@Nullable*/
+        byte[] read(String binaryName) throws IOException;
+
+        boolean contains(String binaryName);
+    }
+
+    /**
+     * Class files in the build directory, written by javac with -d.
+     */
+    private record DiskClasses(Path classPath) implements ClassStore {
+
+        @Override
+        public byte[] read(String binaryName) throws IOException {
+            Path file = classFile(this.classPath, binaryName);
+            return Files.isRegularFile(file) ? Files.readAllBytes(file) : null;
+        }
+
+        @Override
+        public boolean contains(String binaryName) {
+            return Files.isRegularFile(classFile(this.classPath, binaryName));
+        }
+    }
+
+    /**
+     * Class files kept as byte arrays, written by javac through the
+     * MemoryFileManager. Nothing touches the disk.
+     */
+    record MemoryClasses(Map<String, byte[]> classes) implements ClassStore {
+
+        @Override
+        public byte[] read(String binaryName) {
+            return this.classes.get(binaryName);
+        }
+
+        @Override
+        public boolean contains(String binaryName) {
+            return this.classes.containsKey(binaryName);
+        }
+    }
+
+    /**
+     * A class file in MemoryClasses, which javac can both write and read.
+     */
+    private static class MemoryClassFile extends SimpleJavaFileObject {
+
+        private final String binaryName;
+        private final MemoryClasses store;
+
+        public MemoryClassFile(String binaryName, MemoryClasses store) {
+            super(URI.create("mem:///" + binaryName.replace('.', '/') + ".class"), Kind.CLASS);
+            this.binaryName = binaryName;
+            this.store = store;
+        }
+
+        @Override
+        public InputStream openInputStream() throws IOException {
+            byte[] bytes = this.store.read(this.binaryName);
+            if (bytes == null) {
+                throw new NoSuchFileException(this.binaryName);
+            }
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    store.classes().put(binaryName, toByteArray());
+                }
+            };
+        }
+    }
+
+    /**
+     * Sends the class output of javac to MemoryClasses, and makes the classes
+     * already there (the helpers) visible on the class path.
+     */
+    private static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+
+        private final MemoryClasses store;
+
+        public MemoryFileManager(StandardJavaFileManager fileManager, MemoryClasses store) {
+            super(fileManager);
+            this.store = store;
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className,
+                JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+            if (location == StandardLocation.CLASS_OUTPUT && kind == JavaFileObject.Kind.CLASS) {
+                return new MemoryClassFile(className, this.store);
+            }
+            return super.getJavaFileForOutput(location, className, kind, sibling);
+        }
+
+        @Override
+        public boolean hasLocation(Location location) {
+            return location == StandardLocation.CLASS_PATH || super.hasLocation(location);
+        }
+
+        @Override
+        public Iterable<JavaFileObject> list(Location location, String packageName,
+                Set<JavaFileObject.Kind> kinds, boolean recurse) throws IOException {
+            Iterable<JavaFileObject> listed = super.list(location, packageName, kinds, recurse);
+            if (location != StandardLocation.CLASS_PATH || !kinds.contains(JavaFileObject.Kind.CLASS)) {
+                return listed;
+            }
+            List<JavaFileObject> files = new ArrayList<>();
+            listed.forEach(files::add);
+            String prefix = packageName.isEmpty() ? "" : packageName + ".";
+            for (String name : this.store.classes().keySet()) {
+                if (name.startsWith(prefix) && (recurse || name.indexOf('.', prefix.length()) < 0)) {
+                    files.add(new MemoryClassFile(name, this.store));
+                }
+            }
+            return files;
+        }
+
+        @Override
+        public String inferBinaryName(Location location, JavaFileObject file) {
+            if (file instanceof MemoryClassFile mem) {
+                return mem.binaryName;
+            }
+            return super.inferBinaryName(location, file);
+        }
+
+        @Override
+        public boolean isSameFile(FileObject a, FileObject b) {
+            if (a instanceof MemoryClassFile || b instanceof MemoryClassFile) {
+                return a.toUri().equals(b.toUri());
+            }
+            return super.isSameFile(a, b);
+        }
+    }
+
+    /**
+     * Defines classes straight from the bytes in a ClassStore. The helper
+     * classes have a loader of their own, kept until a helper changes, and
+     * each koan file a child of it, dropped when the file changes.
+     */
+    private static class ByteClassLoader extends ClassLoader {
+
+        private static final Cleaner CLEANER = Cleaner.create();
+        // The loaders not collected yet, to see that the dropped ones go away.
+        static final AtomicInteger LIVE = new AtomicInteger();
+
+        private final ClassStore classStore;
+        // The only classes this loader defines, or null for any in the store.
+        private final /*@Nullable*/ Set<String> names;
+
+        public ByteClassLoader(ClassLoader parent, ClassStore classStore, /*@Nullable*/ Set<String> names) {
+            super(parent);
+            this.classStore = classStore;
+            this.names = names;
+            this.setDefaultAssertionStatus(true);
+            LIVE.incrementAndGet();
+            CLEANER.register(this, LIVE::decrementAndGet);
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            if (this.names != null && !this.names.contains(name)) {
+                throw new ClassNotFoundException(name);
+            }
+            byte[] bytes;
+            try {
+                bytes = this.classStore.read(name);
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    static class TreeVisitor extends SimpleTreeVisitor<Void, CompilationUnitTree> {
+
+        // The doc is only needed when a koan fails, so it can be read when it is.
+        // The level is from the @level tag of the doc, and empty without one,
+        // and the budget from the @perf and @alloc tags.
+        private record NameDoc(String name, String level, Budget budget, Supplier<String> doc) {
+
+        }
+        private static final Pattern KOAN_TAGS = Pattern.compile("(?m)^\\s*@(level|perf|alloc)\\b.*\\R?");
+
+        private final List<NameDoc> methods;
+        private final DocTrees docTree;
+        private String packageName;
+        private String className;
+
+        public TreeVisitor(DocTrees docTree) {
+            this.methods = new ArrayList<>();
+            this.docTree = docTree;
+        }
+
+        public TreeVisitor visit(CompilationUnitTree ast) {
+            visit(ast.getPackage(), ast);
+            visit(ast.getTypeDecls(), ast);
+            return this;
+        }
+
+        public String fullClassName() {
+            return this.packageName != null
+                    ? (this.packageName + "." + this.className)
+                    : this.className;
+        }
+
+        @Override
+        public Void visitClass(ClassTree node, CompilationUnitTree ast) {
+            if (node.getModifiers().getFlags().contains(Modifier.PUBLIC)) {
+                this.className = node.getSimpleName().toString();
+                return visit(node.getMembers(), ast);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitMethod(MethodTree node, CompilationUnitTree ast) {
+            String name = node.getName().toString();
+            // Only > public static void fn()
+            if (node.getModifiers().getFlags().containsAll(List.of(Modifier.PUBLIC, Modifier.STATIC))
+                    && node.getParameters().isEmpty()
+                    && node.getReturnType() instanceof PrimitiveTypeTree prim
+                    && prim.getPrimitiveTypeKind().equals(TypeKind.VOID)) {
+                DocCommentTree javaDoc = docTree.getDocCommentTree(TreePath.getPath(ast, node));
+                String level = "";
+                Budget budget = Budget.NONE;
+                if (javaDoc != null) {
+                    for (DocTree tag : javaDoc.getBlockTags()) {
+                        if (tag instanceof UnknownBlockTagTree unknown) {
+                            String content = unknown.getContent().toString().strip();
+                            switch (unknown.getTagName()) {
+                                case "level" ->
+                                    level = content;
+                                case "perf" ->
+                                    budget = budget.withNanos(content);
+                                case "alloc" ->
+                                    budget = budget.withBytes(content);
+                                default -> {
+                                }
+                            }
+                        }
+                    }
+                }
+                // The level and the budgets are for the runner, and not for the student to read.
+                // A koan without a javadoc has an empty doc.
+                NameDoc km = new NameDoc(name, level, budget,
+                        () -> javaDoc != null ? KOAN_TAGS.matcher(" " + javaDoc).replaceAll("") : "");
+                methods.add(km);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitPackage(PackageTree node, CompilationUnitTree p) {
+            this.packageName = node.getPackageName().toString();
+            return null;
+        }
+
+    }
+
+    /**
+     * The java files under the koan folder, and the content of the two list
+     * files. The tree is walked once, and then kept up to date from the
+     * watcher events, so each change costs as much as the change itself and
+     * not a walk of the whole tree. Every folder seen is registered with the
+     * watcher.
+     */
+    private static class SourceInventory {
+
+        private final Path sourceFolder;
+        private final Path helperFilesListfile;
+        private final Path koanFilesListfile;
+        private final /*@Nullable*/ WatchService watcher;
+        private final Set<Path> folders = new HashSet<>();
+        private final Set<Path> javaFiles = new HashSet<>();
+        private List<Path> helperFiles = List.of();
+        private List<Path> koanFiles = List.of();
+
+        public SourceInventory(Path sourceFolder, Path helperFilesListfile, Path koanFilesListfile, /*@Nullable*/ WatchService watcher) {
+            this.sourceFolder = sourceFolder;
+            this.helperFilesListfile = helperFilesListfile;
+            this.koanFilesListfile = koanFilesListfile;
+            this.watcher = watcher;
+        }
+
+        /**
+         * Walk the whole tree and read the list files, forgetting all that was
+         * known before.
+         */
+        public void scan() throws IOException {
+            this.folders.clear();
+            this.javaFiles.clear();
+            addFolder(this.sourceFolder, new HashSet<>());
+            this.helperFiles = readListIfExists(this.helperFilesListfile);
+            this.koanFiles = readListIfExists(this.koanFilesListfile);
+        }
+
+        /**
+         * Apply a watcher event on file. The java and list files it adds,
+         * modifies or removes are added to changed.
+         */
+        public void update(WatchEvent.Kind<?> kind, Path file, Set<Path> changed) throws IOException {
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(file)) {
+                addFolder(file, changed);
+            } else if (kind == StandardWatchEventKinds.ENTRY_DELETE && this.folders.contains(file)) {
+                this.folders.removeIf(f -> f.startsWith(file));
+                for (Iterator<Path> it = this.javaFiles.iterator(); it.hasNext();) {
+                    Path javaFile = it.next();
+                    if (javaFile.startsWith(file)) {
+                        changed.add(javaFile);
+                        it.remove();
+                    }
+                }
+            } else if (file.equals(this.helperFilesListfile)) {
+                this.helperFiles = readListIfExists(file);
+                changed.add(file);
+            } else if (file.equals(this.koanFilesListfile)) {
+                this.koanFiles = readListIfExists(file);
+                changed.add(file);
+            } else if (isJavaSource(file)) {
+                if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                    this.javaFiles.remove(file);
+                } else if (Files.isRegularFile(file)) {
+                    this.javaFiles.add(file);
+                }
+                changed.add(file);
+            }
+        }
+
+        // Note that this assumes that on case insensitive file system, the extension java is lower case.
+        private void addFolder(Path folder, Set<Path> added) throws IOException {
+            if (this.folders.add(folder) && this.watcher != null) {
+                folder.register(this.watcher,
+                        StandardWatchEventKinds.ENTRY_MODIFY,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE);
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+                for (Path file : files) {
+                    if (Files.isDirectory(file)) {
+                        addFolder(file, added);
+                    } else if (isJavaSource(file) && this.javaFiles.add(file)) {
+                        added.add(file);
+                    }
+                }
+            }
+        }
+
+        private List<Path> readListIfExists(Path txtFile) throws IOException {
+            return Files.isRegularFile(txtFile) ? readList(this.sourceFolder, txtFile) : List.of();
+        }
+    }
+
+    /**
+     * The koans and koan sets which have passed, each with the compile key of
+     * its file at the time. A koan counts as finished only while its file is
+     * unchanged. Every result is appended to a journal, which is read back on
+     * startup, so a restarted session carries on from where it stopped.
+     */
+    private static class Progress {
+
+        private static final String PASS = "PASS";
+        private static final String FAIL = "FAIL";
+
+        private final /*@Nullable*/ Path journal;
+        // Read by the koans running concurrently, while the ones before them go in.
+        private final Map<String, String> passed = new ConcurrentHashMap<>();
+
+        public Progress(/*@Nullable*/ Path journal) throws IOException {
+            this.journal = journal;
+            if (journal != null && Files.isRegularFile(journal)) {
+                load();
+            }
+        }
+
+        public boolean isFinished(String koan, String key) {
+            return key.equals(this.passed.get(koan));
+        }
+
+        public void finished(String koan, String key) throws IOException {
+            this.passed.put(koan, key);
+            append(PASS, key, koan);
+        }
+
+        public void failed(String koan, String key) throws IOException {
+            this.passed.remove(koan);
+            append(FAIL, key, koan);
+        }
+
+        private void append(String result, String key, String koan) throws IOException {
+            if (this.journal != null) {
+                Files.writeString(this.journal, result + " " + key + " " + koan + "\n", StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        }
+
+        // Lines are "RESULT key koan", the last line for a koan wins.
+        private void load() throws IOException {
+            int lines = 0;
+            try (BufferedReader in = Files.newBufferedReader(this.journal, StandardCharsets.UTF_8)) {
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    lines++;
+                    String[] fields = line.split(" ", 3);
+                    if (fields.length != 3) {
+                        continue;
+                    }
+                    if (PASS.equals(fields[0])) {
+                        this.passed.put(fields[2], fields[1]);
+                    } else {
+                        this.passed.remove(fields[2]);
+                    }
+                }
+            }
+            // Keep the journal from growing forever, the superseded lines are dropped.
+            if (lines > this.passed.size()) {
+                Path tmp = this.journal.resolveSibling(this.journal.getFileName() + ".tmp");
+                StringBuilder out = new StringBuilder();
+                for (var e : this.passed.entrySet()) {
+                    out.append(PASS).append(' ').append(e.getValue()).append(' ').append(e.getKey()).append('\n');
+                }
+                Files.writeString(tmp, out, StandardCharsets.UTF_8);
+                Files.move(tmp, this.journal, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+    }
+
+    /**
+     * Remembers, for every source file, what it was last compiled from. An
+     * entry is keyed by a hash of the source and the compiler options, and
+     * keeps the helper files the classes refer to along with their hashes,
+     * the classes javac generated and the koans found in the file. When the
+     * key still matches and the class files are still there, the file is
+     * neither compiled nor parsed again, as long as the helpers it refers to
+     * are unchanged.
+     */
+    private static class CompileCache {
+
+        private static final int VERSION = 9;
+
+        private record Entry(String key, Map<Path, String> deps, String className, List<String> classes,
+                List<TreeVisitor.NameDoc> methods) {
+
+            /**
+             * The key of the source together with the helpers it refers to,
+             * which is what the result of running its koans depends on.
+             */
+            public String runKey() {
+                if (this.deps.isEmpty()) {
+                    return this.key;
+                }
+                MessageDigest md = sha256();
+                md.update(this.key.getBytes(StandardCharsets.UTF_8));
+                for (var dep : new TreeMap<>(this.deps).entrySet()) {
+                    md.update((byte) 0);
+                    md.update(dep.getKey().toString().getBytes(StandardCharsets.UTF_8));
+                    md.update(dep.getValue().getBytes(StandardCharsets.UTF_8));
+                }
+                return HexFormat.of().formatHex(md.digest());
+            }
+        }
+
+        /**
+         * A doc still in the mapped index, decoded only when it is read, and
+         * copied as it is into the next index.
+         */
+        private record MappedDoc(ByteBuffer index, int offset, int length) implements Supplier<String> {
+
+            @Override
+            public String get() {
+                return readString(this.index, this.offset, this.length);
+            }
+
+            public void writeTo(OutputStream out) throws IOException {
+                byte[] bytes = new byte[this.length];
+                this.index.get(this.offset, bytes);
+                out.write(bytes);
+            }
+        }
+
+        private final ClassStore classStore;
+        private final /*@Nullable*/ Path cacheFile;
+        private final Map<Path, Entry> entries = new HashMap<>();
+        private boolean dirty;
+
+        public CompileCache(ClassStore classStore, /*@Nullable*/ Path cacheFile) {
+            this.classStore = classStore;
+            this.cacheFile = cacheFile;
+            load();
+        }
+
+        /*@Nullable*/
+        public Entry lookup(Path source, String key) {
+            Entry entry = entries.get(source);
+            if (entry == null || !entry.key.equals(key)) {
+                return null;
+            }
+            for (String className : entry.classes) {
+                if (!this.classStore.contains(className)) {
+                    return null;
+                }
+            }
+            return entry;
+        }
+
+        public void put(Path source, Entry entry) {
+            entries.put(source, entry);
+            dirty = true;
+        }
+
+        public void remove(Path source) {
+            if (entries.remove(source) != null) {
+                dirty = true;
+            }
+        }
+
+        /**
+         * The index which was loaded, which is moved aside before it is
+         * mapped, so that saving never replaces a mapped file, which Windows
+         * does not allow.
+         */
+        private /*@Nullable*/ Path mappedFile() throws IOException {
+            Path old = cacheFile.resolveSibling(cacheFile.getFileName() + ".old");
+            if (Files.isRegularFile(cacheFile)) {
+                Files.move(cacheFile, old, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return Files.isRegularFile(old) ? old : null;
+        }
+
+        private void load() {
+            Path mapped;
+            try {
+                mapped = cacheFile != null ? mappedFile() : null;
+            } catch (IOException e) {
+                return;
+            }
+            if (mapped == null) {
+                return;
+            }
+            // The mapping stays valid once the channel is closed, for the docs read later.
+            try (FileChannel channel = FileChannel.open(mapped, StandardOpenOption.READ)) {
+                ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (index.getInt() != VERSION) {
+                    return;
+                }
+                int n = index.getInt();
+                int docsStart = index.position() + Integer.BYTES;
+                index.position(docsStart + index.getInt());
+                for (; n > 0; n--) {
+                    Path source = Paths.get(readString(index));
+                    String key = readString(index);
+                    Map<Path, String> deps = new HashMap<>();
+                    for (int d = index.getInt(); d > 0; d--) {
+                        deps.put(Paths.get(readString(index)), readString(index));
+                    }
+                    String className = readString(index);
+                    List<String> classes = new ArrayList<>();
+                    for (int c = index.getInt(); c > 0; c--) {
+                        classes.add(readString(index));
+                    }
+                    List<TreeVisitor.NameDoc> methods = new ArrayList<>();
+                    for (int m = index.getInt(); m > 0; m--) {
+                        String name = readString(index);
+                        String level = readString(index);
+                        Budget budget = new Budget(index.getLong(), index.getLong());
+                        int offset = docsStart + index.getInt();
+                        int length = index.getInt();
+                        if (offset + length > index.limit()) {
+                            throw new IOException("Doc out of the index");
+                        }
+                        methods.add(new TreeVisitor.NameDoc(name, level, budget,
+                                new MappedDoc(index, offset, length)));
+                    }
+                    entries.put(source, new Entry(key, deps, className, classes, methods));
+                }
+            } catch (IOException | RuntimeException e) {
+                // A damaged index only costs a recompile.
+                entries.clear();
+            }
+        }
+
+        /**
+         * Write the index: the version, the number of entries, the docs of
+         * all the koans one after the other, and then the entries, which
+         * have the level, the budget, and the offset and length of each doc. Loading maps the file and
+         * reads the entries, skipping the docs, which are read only when a
+         * failing koan shows its doc. It is written once a pass, when an
+         * entry has changed.
+         */
+        public void save() throws IOException {
+            if (cacheFile == null || !dirty) {
+                return;
+            }
+            ByteArrayOutputStream docs = new ByteArrayOutputStream();
+            ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(entryBytes);
+            for (var e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                writeString(out, e.getKey().toString());
+                writeString(out, entry.key);
+                out.writeInt(entry.deps.size());
+                for (var dep : entry.deps.entrySet()) {
+                    writeString(out, dep.getKey().toString());
+                    writeString(out, dep.getValue());
+                }
+                writeString(out, entry.className);
+                out.writeInt(entry.classes.size());
+                for (String className : entry.classes) {
+                    writeString(out, className);
+                }
+                out.writeInt(entry.methods.size());
+                for (var nd : entry.methods) {
+                    int offset = docs.size();
+                    if (nd.doc() instanceof MappedDoc mapped) {
+                        mapped.writeTo(docs);
+                    } else {
+                        docs.write(nd.doc().get().getBytes(StandardCharsets.UTF_8));
+                    }
+                    writeString(out, nd.name());
+                    writeString(out, nd.level());
+                    out.writeLong(nd.budget().nanos());
+                    out.writeLong(nd.budget().bytes());
+                    out.writeInt(offset);
+                    out.writeInt(docs.size() - offset);
+                }
+            }
+            Path tmp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+            try (DataOutputStream file = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                file.writeInt(VERSION);
+                file.writeInt(entries.size());
+                file.writeInt(docs.size());
+                docs.writeTo(file);
+                entryBytes.writeTo(file);
+            }
+            Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        }
+
+        // writeUTF is limited to 64K, which a long javadoc could exceed.
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(ByteBuffer in) {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static String readString(ByteBuffer in, int offset, int length) {
+            byte[] bytes = new byte[length];
+            in.get(offset, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    private void runKoans()
+            throws Exception {
+
+        boolean finished = runPass(Set.of());
+        while (!finished) {
+            finished = runPass(waitForSourceChange());
+        }
+        this.log.done("Congratulations, you finished koans!");
+    }
+
+    /**
+     * Run all the selected koans once, without waiting for changes, going
+     * on past the ones which fail, and write a JUnit XML and a JSON report
+     * of how each koan went.
+     *
+     * @return the exit status, EXIT_ERROR if the koans could not be run at
+     * all, as when a list file or a helper is wrong
+     */
+    private int runOnce()
+            throws Exception {
+        long start = System.nanoTime();
+        boolean finished = runPass(Set.of());
+        long nanos = System.nanoTime() - start;
+        int koans = 0;
+        int compiled = 0;
+        for (FileReport file : this.fileReports) {
+            koans += file.koans().size();
+            compiled += file.className() != null ? 1 : 0;
+        }
+        Files.createDirectories(this.options.reports);
+        Path junit = this.options.reports.resolve(JUNIT_REPORT_FILE);
+        Path json = this.options.reports.resolve(JSON_REPORT_FILE);
+        writeJUnitReport(junit, nanos);
+        writeJsonReport(json, finished, nanos);
+        if (finished) {
+            this.log.done("All {0} koans done in {1} ms, reports in {2} and {3}", koans, nanos / 1_000_000, junit, json);
+            return EXIT_DONE;
+        }
+        if (this.fileReports.isEmpty()) {
+            this.log.severe("No koans were run, stopped at {0}", this.stoppedAt);
+            return EXIT_ERROR;
+        }
+        this.log.severe("{0} of {1} koans done, and {2} of {3} koan files compiled, in {4} ms, reports in {5} and {6}",
+                this.koansDone, koans, compiled, this.fileReports.size(), nanos / 1_000_000, junit, json);
+        return EXIT_FAILED;
+    }
+
+    /**
+     * The report as JUnit has it, a test suite for each koan file, and a
+     * test case for each koan. A file which does not compile is a suite
+     * with one case, "compile", in error. A failing assert, or a koan over
+     * its budget, is a failure, and a timeout or an exception an error.
+     */
+    private void writeJUnitReport(Path reportFile, long nanos)
+            throws IOException {
+        StringBuilder suites = new StringBuilder();
+        int tests = 0;
+        int failures = 0;
+        int errors = 0;
+        for (FileReport file : this.fileReports) {
+            String suite = file.className() != null ? file.className() : file.file().toString();
+            StringBuilder cases = new StringBuilder();
+            int suiteFailures = 0;
+            int suiteErrors = 0;
+            long suiteNanos = 0;
+            if (file.className() == null) {
+                String message = file.compileErrors().isEmpty() ? "Compilation failed"
+                        : file.compileErrors().get(0).message();
+                StringBuilder details = new StringBuilder();
+                for (CompilerMessage m : file.compileErrors()) {
+                    details.append(m.file()).append(':').append(m.line()).append(": ").append(m.label())
+                            .append(": ").append(m.message()).append('\n');
+                }
+                cases.append("    <testcase classname=\"").append(xml(suite)).append("\" name=\"compile\" time=\"0\">\n")
+                        .append("      <error type=\"compile\" message=\"").append(xmlAttribute(message)).append("\">")
+                        .append(xml(details.toString())).append("</error>\n")
+                        .append("    </testcase>\n");
+                suiteErrors++;
+            }
+            for (KoanResult koan : file.koans()) {
+                suiteNanos += koan.nanos();
+                String name = koan.koan().substring(koan.koan().indexOf("::") + 2);
+                cases.append("    <testcase classname=\"").append(xml(suite)).append("\" name=\"").append(xml(name))
+                        .append("\" time=\"").append(seconds(koan.nanos())).append('"');
+                if (koan.passed()) {
+                    cases.append("/>\n");
+                    continue;
+                }
+                boolean failure = koan.result().equals("failed") || koan.result().equals("over-budget");
+                String element = failure ? "failure" : "error";
+                String message = String.valueOf(koan.message());
+                cases.append(">\n      <").append(element).append(" type=\"").append(xml(koan.result()))
+                        .append("\" message=\"").append(xmlAttribute(message)).append("\">")
+                        .append(xml(file.file() + (koan.line() != null ? ":" + koan.line() : "") + ": " + message))
+                        .append("</").append(element).append(">\n    </testcase>\n");
+                if (failure) {
+                    suiteFailures++;
+                } else {
+                    suiteErrors++;
+                }
+            }
+            int suiteTests = file.koans().size() + (file.className() == null ? 1 : 0);
+            suites.append("  <testsuite name=\"").append(xml(suite)).append("\" tests=\"").append(suiteTests)
+                    .append("\" failures=\"").append(suiteFailures).append("\" errors=\"").append(suiteErrors)
+                    .append("\" skipped=\"0\" time=\"").append(seconds(suiteNanos)).append("\">\n")
+                    .append(cases).append("  </testsuite>\n");
+            tests += suiteTests;
+            failures += suiteFailures;
+            errors += suiteErrors;
+        }
+        String report = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<testsuites name=\"java-koans\" tests=\"" + tests + "\" failures=\"" + failures
+                + "\" errors=\"" + errors + "\" time=\"" + seconds(nanos) + "\">\n"
+                + suites
+                + "</testsuites>\n";
+        Files.writeString(reportFile, report, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The report as one JSON object, with the files in order, and in each
+     * one its koans, or the compile errors when it did not compile.
+     */
+    private void writeJsonReport(Path reportFile, boolean finished, long nanos)
+            throws IOException {
+        List<Object> files = new ArrayList<>();
+        for (FileReport file : this.fileReports) {
+            List<Object> koans = new ArrayList<>();
+            for (KoanResult koan : file.koans()) {
+                Map<String, Object> k = new LinkedHashMap<>();
+                k.put("koan", koan.koan());
+                k.put("result", koan.result());
+                k.put("nanos", koan.nanos());
+                k.put("line", koan.line());
+                k.put("message", koan.message());
+                koans.add(k);
+            }
+            Map<String, Object> f = new LinkedHashMap<>();
+            f.put("file", file.file().toString());
+            f.put("className", file.className());
+            f.put("compiled", file.className() != null);
+            f.put("diagnostics", diagnostics(file.compileErrors()));
+            f.put("koans", koans);
+            files.add(f);
+        }
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("finished", finished);
+        report.put("koansDone", this.koansDone);
+        report.put("stoppedAt", this.stoppedAt);
+        report.put("nanos", nanos);
+        report.put("files", files);
+        StringBuilder out = new StringBuilder();
+        Reporter.jsonValue(out, report);
+        Files.writeString(reportFile, out.append('\n'), StandardCharsets.UTF_8);
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e9);
+    }
+
+    // A line break in an attribute would be read back as a space.
+    private static String xmlAttribute(String s) {
+        return xml(s).replace("\n", "&#10;");
+    }
+
+    // Escaped for XML text and attributes, leaving out what XML 1.0 can not have at all.
+    private static String xml(String s) {
+        StringBuilder out = new StringBuilder(s.length());
+        for (char c : s.toCharArray()) {
+            switch (c) {
+                case '&' -> out.append("&amp;");
+                case '<' -> out.append("&lt;");
+                case '>' -> out.append("&gt;");
+                case '"' -> out.append("&quot;");
+                case '\n', '\t' -> out.append(c);
+                default -> {
+                    if (c >= 0x20 && c != 0xFFFE && c != 0xFFFF) {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Check, compile and run the koans once.
+     *
+     * @param changed the files changed since the last pass
+     * @return true if all the koans are done
+     */
+    private boolean runPass(Set<Path> changed)
+            throws Exception {
+        boolean finished = runStages(changed);
+        this.compileCache.save();
+        this.log.event("pass", "finished", finished, "koansDone", this.koansDone, "stoppedAt", this.stoppedAt);
+        if (this.options.memoryStats) {
+            reportMemory();
+        }
+        return finished;
+    }
+
+    /**
+     * The classes loaded and unloaded so far, the koan class loaders not
+     * collected yet, and the metaspace in use, to see that they stay flat
+     * over a long session.
+     */
+    private void reportMemory() {
+        ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+        long metaspace = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals("Metaspace")) {
+                metaspace = pool.getUsage().getUsed();
+            }
+        }
+        int loaded = classLoading.getLoadedClassCount();
+        long unloaded = classLoading.getUnloadedClassCount();
+        int loaders = ByteClassLoader.LIVE.get();
+        this.log.info("Classes loaded {0}, unloaded {1}, koan class loaders {2}, metaspace {3} KB",
+                loaded, unloaded, loaders, metaspace / 1024);
+        this.log.event("memory", "loadedClasses", loaded, "unloadedClasses", unloaded, "classLoaders", loaders,
+                "metaspaceBytes", metaspace);
+    }
+
+    private boolean runStages(Set<Path> changed)
+            throws Exception {
+        // Everything else still has the content hashed last time.
+        this.contentHashes.keySet().removeAll(changed);
+        List<Path> helperFiles = new ArrayList<>();
+        List<Path> koanFiles = new ArrayList<>();
+        this.koansDone = 0;
+        this.stoppedAt = null;
+        this.fileReports.clear();
+
+        CheckFilesEvent check = new CheckFilesEvent();
+        check.begin();
+        boolean checked = checkFiles(helperFiles, koanFiles);
+        check.helperFiles = helperFiles.size();
+        check.koanFiles = koanFiles.size();
+        check.success = checked;
+        check.commit();
+        if (!checked) {
+            this.stoppedAt = "the list files";
+            return false;
+        }
+        if (!compileHelperFiles(helperFiles)) {
+            this.stoppedAt = "the helper files";
+            return false;
+        }
+        boolean passed = runAllKoans(koanFiles);
+        // Nothing run is not done, it is most likely a misspelled selector or level.
+        if (passed && this.fileReports.isEmpty()) {
+            this.log.severe("No koans are selected by {0}", this.selection.describe());
+            this.stoppedAt = "the selection";
+            return false;
+        }
+        return passed;
+    }
+
+    /**
+     * Stop watching the sources, once the runner is no longer used.
+     */
+    private void closeWatcher()
+            throws IOException {
+        if (this.watcher != null) {
+            this.watcher.close();
+        }
+    }
+
+    /**
+     * Take in the changes the watcher has seen so far, without waiting.
+     *
+     * @return the files which changed
+     */
+    private Set<Path> drainSourceEvents()
+            throws IOException {
+        Set<Path> changed = new HashSet<>();
+        for (WatchKey e = watcher.poll(); e != null; e = watcher.poll()) {
+            sourceEvents(changed, e);
+        }
+        return changed;
+    }
+
+    /**
+     * Wait for the koan sources or list files to change. Once a change comes
+     * in, keep collecting until no new event arrives for SETTLE_QUIET_MILLIS,
+     * but not longer than SETTLE_MAX_MILLIS.
+     *
+     * @return the files which changed
+     */
+    public Set<Path> waitForSourceChange()
+            throws IOException, InterruptedException {
+        this.log.info("");
+        this.log.info("Edit the file(s) and save to continue");
+        this.log.info("");
+
+        // What changed while the koans were running may not have been seen by
+        // them, and is not waited for again.
+        Set<Path> changed = drainSourceEvents();
+
+        boolean foundSourceChange = !changed.isEmpty();
+        do {
+            if (!foundSourceChange) {
+                foundSourceChange = sourceEvents(changed, watcher.take());
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_MAX_MILLIS);
+            for (WatchKey e = watcher.poll(SETTLE_QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                    e != null;
+                    e = System.nanoTime() < deadline ? watcher.poll(SETTLE_QUIET_MILLIS, TimeUnit.MILLISECONDS) : null) {
+                foundSourceChange |= sourceEvents(changed, e);
+            }
+        } while (!foundSourceChange);
+        return changed;
+    }
+
+    /**
+     * Bring the inventory up to date with the events, and add the koan
+     * sources and list files they touch to changed.
+     *
+     * @return true if there was any
+     */
+    private boolean sourceEvents(Set<Path> changed, WatchKey key)
+            throws IOException {
+        Path folder = (Path) key.watchable();
+        int before = changed.size();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were lost, so start afresh.
+                this.inventory.scan();
+                changed.addAll(this.inventory.javaFiles);
+                changed.add(this.helperFilesListfile);
+                changed.add(this.koanFilesListfile);
+            } else if (event.context() instanceof Path name) {
+                this.inventory.update(event.kind(), folder.resolve(name), changed);
+            }
+        }
+        key.reset();
+        return changed.size() > before;
+    }
+
+    boolean checkFiles(List<Path> helperFiles, List<Path> koanFiles) {
+
+        Set<Path> diskJavaFiles = this.inventory.javaFiles;
+        helperFiles.addAll(this.inventory.helperFiles);
+        koanFiles.addAll(this.inventory.koanFiles);
+
+        boolean ret = true;
+        // Some set jugglery now.
+        Set<Path> common = intersection(helperFiles, koanFiles);
+        if (!common.isEmpty()) {
+            this.log.severe("HELPERS and SOURCES in Main.java have common elements:{0}", common);
+            ret = false;
+        }
+        Set<Path> list = union(helperFiles, koanFiles);
+        Set<Path> missingOnDisk = difference(list, diskJavaFiles);
+        Set<Path> extraOnDisk = difference(diskJavaFiles, list);
+        if (!missingOnDisk.isEmpty()) {
+            List<Path> actual = missingOnDisk.stream().filter(Main::isJavaSource).toList();
+            if (!actual.isEmpty()) {
+                this.log.severe("Files missing on disk:  {0}", missingOnDisk);
+            }
+            ret = false;
+        }
+        if (!extraOnDisk.isEmpty()) {
+            List<Path> actual = extraOnDisk.stream().filter(Main::isJavaSource).toList();
+            if (!actual.isEmpty()) {
+                this.log.severe("Files missing in {0} or {1}: {2}", this.helperFilesListfile, this.koanFilesListfile, extraOnDisk);
+            }
+            ret = false;
+        }
+        return ret;
+    }
+
+    private static boolean isJavaSource(Path p) {
+        String f = p.getFileName().toString();
+        return f.endsWith(".java") && !f.startsWith(".");
+    }
+
+    private static List<Path> readList(Path sourceFolder, Path txtFile)
+            throws IOException {
+        return Files.readAllLines(txtFile, StandardCharsets.UTF_8)
+                .stream()
+                .map(line -> line.replaceFirst("#.*", "").trim())
+                .filter(line -> !line.isBlank())
+                .map(line -> sourceFolder.resolve(line))
+                .toList();
+    }
+
+    /**
+     * Compile the helpers, all together, unless every one of them is in the
+     * compile cache with the key of the current sources. Then work out which
+     * helper refers to which, for helperDependencies.
+     */
+    private boolean compileHelperFiles(List<Path> helperFiles)
+            throws IOException {
+        CompileHelpersEvent event = new CompileHelpersEvent();
+        event.begin();
+        String key = compileKey(helperFiles);
+        boolean cached = helperFiles.stream().allMatch(h -> this.compileCache.lookup(h, key) != null);
+        event.helperFiles = helperFiles.size();
+        event.cached = cached;
+        if (!cached) {
+            Compiled compiled = compile(helperFiles);
+            if (!compiled.success()) {
+                this.log.severe("Compilation of helper classes has failed, which should not happen.");
+                for (Path helper : helperFiles) {
+                    this.compileCache.remove(helper);
+                }
+                this.helpersKey = "";
+                event.commit();
+                return false;
+            }
+            for (Path helper : helperFiles) {
+                this.compileCache.put(helper, new CompileCache.Entry(key, Map.of(), "",
+                        compiled.classes().getOrDefault(helper, List.of()), List.of()));
+            }
+        }
+        if (!key.equals(this.helpersKey)) {
+            Map<String, Path> classes = new HashMap<>();
+            for (Path helper : helperFiles) {
+                for (String className : this.compileCache.lookup(helper, key).classes()) {
+                    classes.put(className, helper);
+                }
+            }
+            Map<Path, Set<Path>> references = new HashMap<>();
+            Set<Path> constants = new HashSet<>();
+            for (var e : classes.entrySet()) {
+                byte[] classFile = this.classStore.read(e.getKey());
+                Set<Path> refs = references.computeIfAbsent(e.getValue(), k -> new HashSet<>());
+                for (String ref : referencedClasses(classFile)) {
+                    Path helper = classes.get(ref);
+                    if (helper != null && !helper.equals(e.getValue())) {
+                        refs.add(helper);
+                    }
+                }
+                if (declaresConstants(classFile)) {
+                    constants.add(e.getValue());
+                }
+            }
+            this.helperClasses = classes;
+            this.helperReferences = references;
+            this.constantHelpers = constants;
+            this.helpersKey = key;
+            this.helperLoader = new ByteClassLoader(Main.class.getClassLoader(), this.classStore,
+                    Set.copyOf(classes.keySet()));
+            // The koans loaded so far link to the old helpers.
+            this.loadedKoans.clear();
+        }
+        event.success = true;
+        event.commit();
+        return true;
+    }
+
+    /**
+     * The helper files which the classes refer to, directly or through other
+     * helpers, with the hashes of their sources. Constants which javac
+     * inlines leave no trace in the class files, so the helpers declaring
+     * constants are taken to be referred to by every class.
+     */
+    private Map<Path, String> helperDependencies(List<String> classes)
+            throws IOException {
+        Deque<Path> todo = new ArrayDeque<>(this.constantHelpers);
+        for (String className : classes) {
+            for (String ref : referencedClasses(this.classStore.read(className))) {
+                Path helper = this.helperClasses.get(ref);
+                if (helper != null) {
+                    todo.add(helper);
+                }
+            }
+        }
+        Map<Path, String> deps = new HashMap<>();
+        while (!todo.isEmpty()) {
+            Path helper = todo.pop();
+            if (!deps.containsKey(helper)) {
+                deps.put(helper, contentHash(helper));
+                todo.addAll(this.helperReferences.getOrDefault(helper, Set.of()));
+            }
+        }
+        return deps;
+    }
+
+    /**
+     * The cache entry of a koan file, if it is built from the same source and
+     * the helpers it refers to have not changed since.
+     */
+    private /*@Nullable*/ CompileCache.Entry upToDate(Path srcFile, String key)
+            throws IOException {
+        CompileCache.Entry entry = this.compileCache.lookup(srcFile, key);
+        if (entry == null) {
+            return null;
+        }
+        for (var dep : entry.deps().entrySet()) {
+            if (!this.inventory.javaFiles.contains(dep.getKey())
+                    || !dep.getValue().equals(contentHash(dep.getKey()))) {
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    private CompileCache.Entry cacheCompiled(Path srcFile, String key, Compiled compiled)
+            throws IOException {
+        TreeVisitor found = compiled.sources().get(srcFile);
+        List<String> classes = compiled.classes().getOrDefault(srcFile, List.of());
+        CompileCache.Entry entry = new CompileCache.Entry(key, helperDependencies(classes),
+                found.fullClassName(), classes, found.methods);
+        this.compileCache.put(srcFile, entry);
+        return entry;
+    }
+
+    private boolean runAllKoans(List<Path> koanFiles)
+            throws IOException, ClassNotFoundException, NoSuchMethodException {
+        int totalClass = koanFiles.size();
+        int currClass = 0;
+        if (this.options.batch) {
+            compileBatch(koanFiles);
+        } else if (this.options.parallel) {
+            compileParallel(koanFiles);
+        }
+        // Run concurrently, the koans of a file run on the pool while the
+        // files after it are compiled, and what a file reports is held back
+        // until the files before it are reported.
+        /*@Nullable*/
+        ExecutorService pool = this.options.concurrent
+                ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())
+                : null;
+        Reporter log = this.log;
+        List<FileStep> steps = new ArrayList<>();
+        boolean passed = true;
+        try {
+            for (Path srcFile : koanFiles) {
+                currClass++;
+                if (this.selection.selectsFile(srcFile)) {
+                    this.log = pool != null ? log.deferred() : log;
+                    /*@Nullable*/
+                    FileStep step;
+                    try {
+                        step = startFile(srcFile, currClass, totalClass, pool);
+                    } finally {
+                        this.log = log;
+                    }
+                    if (step == null) {
+                        continue;
+                    }
+                    steps.add(step);
+                    // Report the files run so far, all of them once one does not compile.
+                    // Nothing after a file which fails is run, unless running once.
+                    passed &= finishSteps(steps, totalClass, pool == null || step.failedToCompile());
+                    if (!passed && !this.options.once) {
+                        return false;
+                    }
+                }
+            }
+            return finishSteps(steps, totalClass, true) && passed;
+        } finally {
+            if (pool != null) {
+                // The files after a failing one run on, within the watchdog
+                // budget, and what they come to is dropped.
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * A koan file on its way: what it has reported, held back when the
+     * files run concurrently, and its run, which has all the koans skipped
+     * when the whole set was, and none when the file failed to compile, as
+     * there is no class for it either.
+     */
+    private record FileStep(Path srcFile, int currClass, Reporter log, boolean failedToCompile,
+            /*@Nullable*/ String className, /*@Nullable*/ KoansFile koanFile, /*@Nullable*/ Future<FileRun> run) {
+
+    }
+
+    /**
+     * What a pass came to for a koan file, for the reports of a run once.
+     */
+    private record FileReport(Path file, /*@Nullable*/ String className, List<KoanResult> koans,
+            List<CompilerMessage> compileErrors) {
+
+    }
+
+    /**
+     * How a koan went: done, skipped as done already, or what the event of
+     * the failing koan has for a result, with how long it took.
+     */
+    private record KoanResult(String koan, String result, long nanos, /*@Nullable*/ Integer line,
+            /*@Nullable*/ String message) {
+
+        boolean passed() {
+            return this.result.equals("done") || this.result.equals("skipped");
+        }
+    }
+
+    /**
+     * What running the koans of a file came to, a result for each koan run,
+     * up to the first one which failed, or past it when running once.
+     */
+    private record FileRun(List<KoanResult> results) {
+
+        /*@Nullable*/
+        String failed() {
+            return this.results.stream().filter(r -> !r.passed()).map(KoanResult::koan).findFirst().orElse(null);
+        }
+    }
+
+    /**
+     * Compile and load a koan file, and start running its koans, on the
+     * pool if there is one, and otherwise right away.
+     *
+     * @return the step, or null if none of its koans are selected
+     */
+    private /*@Nullable*/ FileStep startFile(Path srcFile, int currClass, int totalClass,
+            /*@Nullable*/ ExecutorService pool)
+            throws IOException, ClassNotFoundException, NoSuchMethodException {
+        String key = compileKey(List.of(srcFile));
+        if (!hasSelectedKoans(srcFile, key)) {
+            return null;
+        }
+        Reporter log = this.log;
+        // A finished koan set with its classes in place need not even be loaded.
+        CompileCache.Entry cached = upToDate(srcFile, key);
+        if (cached != null && this.progress.isFinished(cached.className(), cached.runKey())) {
+            log.info("Koan set skipped [{0}/{1}]: {2}", currClass, totalClass, cached.className());
+            List<KoanResult> skipped = new ArrayList<>();
+            for (var nd : cached.methods()) {
+                if (this.selection.selectsKoan(cached.className(), nd.name(), nd.level())) {
+                    String koan = cached.className() + "::" + nd.name();
+                    log.event("koan", "koan", koan, "file", srcFile, "result", "skipped");
+                    skipped.add(new KoanResult(koan, "skipped", 0, null, null));
+                }
+            }
+            return new FileStep(srcFile, currClass, log, false, cached.className(), null,
+                    CompletableFuture.completedFuture(new FileRun(skipped)));
+        }
+
+        /*@Nullable*/
+        KoansFile koanFile = compileAndLoad(srcFile, key);
+        if (koanFile == null) {
+            return new FileStep(srcFile, currClass, log, true, null, null, null);
+        }
+        Future<FileRun> run = pool != null
+                ? pool.submit(() -> runSingleKoan(koanFile, log))
+                : CompletableFuture.completedFuture(runSingleKoan(koanFile, log));
+        return new FileStep(srcFile, currClass, log, false, koanFile.classFullName, koanFile, run);
+    }
+
+    /**
+     * Report the steps in order, as each one is done, and put their koans in
+     * the progress, up to the first one which failed, or all of them when
+     * running once. The steps reported are taken off the list, and the
+     * rest are dropped after a failure.
+     *
+     * @param waitForAll wait for all the steps to be done, and otherwise
+     *                   stop at the first one still running
+     * @return true if none of them failed
+     */
+    private boolean finishSteps(List<FileStep> steps, int totalClass, boolean waitForAll)
+            throws IOException {
+        boolean passed = true;
+        try {
+            while (!steps.isEmpty()) {
+                FileStep step = steps.get(0);
+                if (!waitForAll && step.run() != null && !step.run().isDone()) {
+                    return passed;
+                }
+                steps.remove(0);
+                /*@Nullable*/
+                FileRun run = step.run() != null ? step.run().get() : null;
+                step.log().replay();
+                if (step.failedToCompile() || run == null) {
+                    CompileFailure failure = this.compileFailures.get(step.srcFile());
+                    this.fileReports.add(new FileReport(step.srcFile(), null, List.of(),
+                            failure != null ? failure.messages() : List.of()));
+                    if (this.stoppedAt == null) {
+                        this.stoppedAt = "compiling " + step.srcFile();
+                    }
+                    passed = false;
+                    if (!this.options.once) {
+                        steps.clear();
+                        return false;
+                    }
+                    continue;
+                }
+                this.fileReports.add(new FileReport(step.srcFile(), step.className(), run.results(), List.of()));
+                KoansFile koanFile = step.koanFile();
+                for (KoanResult result : run.results()) {
+                    if (result.passed()) {
+                        this.koansDone++;
+                    }
+                    if (koanFile != null && result.result().equals("done")) {
+                        this.progress.finished(result.koan(), koanFile.key);
+                    } else if (koanFile != null && !result.passed()) {
+                        this.progress.failed(result.koan(), koanFile.key);
+                    }
+                }
+                // The whole set was skipped.
+                if (koanFile == null) {
+                    continue;
+                }
+                String failed = run.failed();
+                if (failed != null) {
+                    if (this.stoppedAt == null) {
+                        this.stoppedAt = failed;
+                    }
+                    // Load it again next time, as a koan given up on may still be running in it.
+                    this.loadedKoans.remove(step.srcFile());
+                    passed = false;
+                    if (!this.options.once) {
+                        steps.clear();
+                        return false;
+                    }
+                    continue;
+                }
+                // With only some of its koans run, the set is not done yet.
+                if (selectedKoans(koanFile).size() == koanFile.methods.size()) {
+                    this.progress.finished(koanFile.classFullName, koanFile.key);
+                }
+                this.log.done("Koan set done [{0}/{1}]: {2}", step.currClass(), totalClass, koanFile.classFullName);
+            }
+            return passed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while running koans", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Running koans crashed", e.getCause());
+        }
+    }
+
+    /**
+     * Compile all the selected koan files which are not in the compile cache
+     * with one javac, and put each file which compiles in the cache. A
+     * failing file keeps javac from generating the files after it, so the
+     * failing ones are dropped and the rest compiled again, until a round
+     * succeeds. The errors of the failing ones are kept for compileAndLoad.
+     */
+    private void compileBatch(List<Path> koanFiles)
+            throws IOException {
+        Map<Path, String> pending = pendingCompiles(koanFiles);
+        while (!pending.isEmpty()) {
+            Compiled compiled = runJavac(this.compiler, this.classStore, List.copyOf(pending.keySet()),
+                    new StringWriter(), BATCH_OPTIONS);
+            if (compiled.success()) {
+                for (var e : pending.entrySet()) {
+                    cacheCompiled(e.getKey(), e.getValue(), compiled);
+                }
+                break;
+            }
+            // With -Werror a warning fails the compilation as well.
+            Map<Path, List<CompilerMessage>> failed = new HashMap<>();
+            for (CompilerMessage m : compiled.messages()) {
+                if (m.file() != null && m.kind() != Diagnostic.Kind.NOTE) {
+                    failed.computeIfAbsent(m.file(), k -> new ArrayList<>()).add(m);
+                }
+            }
+            failed.keySet().retainAll(pending.keySet());
+            if (failed.isEmpty()) {
+                // Nothing to blame on a single file, so blame them all.
+                for (Path srcFile : pending.keySet()) {
+                    failed.put(srcFile, compiled.messages());
+                }
+            }
+            for (var e : failed.entrySet()) {
+                compileFailed(e.getKey(), pending.remove(e.getKey()), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Compile all the selected koan files which are not in the compile cache
+     * at the same time, one javac for each, once the helpers are compiled.
+     * The results are taken in KoanFiles.txt order, so the cache and the
+     * screen see the same thing as when compiling one after the other.
+     */
+    private void compileParallel(List<Path> koanFiles)
+            throws IOException {
+        Map<Path, String> pending = pendingCompiles(koanFiles);
+        if (pending.isEmpty()) {
+            return;
+        }
+        int threads = Math.min(pending.size(), Runtime.getRuntime().availableProcessors());
+        Map<Path, Future<Compiled>> running = new LinkedHashMap<>();
+        try (ExecutorService executor = Executors.newFixedThreadPool(threads)) {
+            for (Path srcFile : pending.keySet()) {
+                running.put(srcFile, executor.submit(
+                        () -> runJavac(this.compiler, this.classStore, List.of(srcFile), new StringWriter(), List.of())));
+            }
+            for (var e : running.entrySet()) {
+                Path srcFile = e.getKey();
+                Compiled compiled = e.getValue().get();
+                if (compiled.success()) {
+                    cacheCompiled(srcFile, pending.get(srcFile), compiled);
+                } else {
+                    compileFailed(srcFile, pending.get(srcFile), compiled.messages());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compiling", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Compilation crashed", e.getCause());
+        }
+    }
+
+    /**
+     * Keep the errors of a file which failed to compile, until the file or
+     * the helpers change, so they can be shown again without compiling it.
+     */
+    private void compileFailed(Path srcFile, String key, List<CompilerMessage> messages)
+            throws IOException {
+        this.compileCache.remove(srcFile);
+        this.compileFailures.put(srcFile, new CompileFailure(key + this.helpersKey, messages));
+    }
+
+    /*@Nullable*/
+    private CompileFailure knownFailure(Path srcFile, String key) {
+        CompileFailure failure = this.compileFailures.get(srcFile);
+        return failure != null && failure.key().equals(key + this.helpersKey) ? failure : null;
+    }
+
+    /**
+     * The selected koan files which are not in the compile cache, with their
+     * compile keys.
+     */
+    private Map<Path, String> pendingCompiles(List<Path> koanFiles)
+            throws IOException {
+        Map<Path, String> pending = new LinkedHashMap<>();
+        for (Path srcFile : koanFiles) {
+            if (this.selection.selectsFile(srcFile)) {
+                String key = compileKey(List.of(srcFile));
+                if (hasSelectedKoans(srcFile, key) && upToDate(srcFile, key) == null
+                        && knownFailure(srcFile, key) == null) {
+                    pending.put(srcFile, key);
+                }
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Compile and load one koan file, unless the compile cache says the class
+     * files in CLASS_FOLDER are already built from the same source, or the
+     * same source has already failed to compile.
+     *
+     * @return the loaded koans, or null if compilation failed
+     */
+    private /*@Nullable */ KoansFile compileAndLoad(Path srcFile, String key)
+            throws IOException, ClassNotFoundException, NoSuchMethodException {
+        CompileCache.Entry cached = upToDate(srcFile, key);
+        if (cached != null) {
+            KoansFile loaded = this.loadedKoans.get(srcFile);
+            if (loaded != null && loaded.key().equals(cached.runKey())) {
+                return loaded;
+            }
+            return load(srcFile, cached);
+        }
+        CompileFailure failure = knownFailure(srcFile, key);
+        if (failure != null) {
+            reportCompileFailure(List.of(srcFile), failure.messages());
+            return null;
+        }
+
+        Compiled compiled = compile(List.of(srcFile));
+        if (!compiled.success()) {
+            compileFailed(srcFile, key, compiled.messages());
+            return null;
+        }
+        return load(srcFile, cacheCompiled(srcFile, key, compiled));
+    }
+
+    /**
+     * Load a koan file in a new child of the helper loader, in place of the
+     * one it had, which then goes with its classes.
+     */
+    private KoansFile load(Path srcFile, CompileCache.Entry entry)
+            throws ClassNotFoundException, NoSuchMethodException {
+        KoansFile loaded = bindClass(this.helperLoader, this.classStore, srcFile, entry.runKey(),
+                entry.className(), entry.methods());
+        this.loadedKoans.put(srcFile, loaded);
+        return loaded;
+    }
+
+    /**
+     * Run the selected koans of a file, up to the first one which fails, or
+     * all of them when running once. The progress is only read, and is left
+     * to finishSteps, so the files run at the same time go into it in order.
+     */
+    private FileRun runSingleKoan(KoansFile koanFile, Reporter log) {
+        List<KoanMethod> selected = selectedKoans(koanFile);
+        List<KoanResult> results = new ArrayList<>();
+        int total = selected.size();
+        int curr = 0;
+        for (KoanMethod m : selected) {
+            curr++;
+            String methodName = koanFile.classFullName + "::" + m.name;
+            if (!this.progress.isFinished(methodName, koanFile.key)) {
+                KoanResult result = invoke(koanFile, m, methodName, log);
+                results.add(result);
+                if (!result.passed()) {
+                    if (!this.options.once) {
+                        break;
+                    }
+                    continue;
+                }
+                log.done("Koan done  [{0}/{1}]: {2}", curr, total, methodName);
+            } else {
+                log.info("Koan skipped [{0}/{1}]: {2}", curr, total, methodName);
+                log.event("koan", "koan", methodName, "file", koanFile.filename, "result", "skipped");
+                results.add(new KoanResult(methodName, "skipped", 0, null, null));
+            }
+        }
+        return new FileRun(results);
+    }
+
+    private List<KoanMethod> selectedKoans(KoansFile koanFile) {
+        return koanFile.methods.stream()
+                .filter(m -> this.selection.selectsKoan(koanFile.classFullName, m.name, m.level))
+                .toList();
+    }
+
+    /**
+     * Whether any koan in the file is selected. When the selection needs to
+     * know the koans, they are from the index if the file is compiled, and
+     * otherwise from parsing it, so the files with nothing selected are not
+     * compiled at all.
+     */
+    private boolean hasSelectedKoans(Path srcFile, String key)
+            throws IOException {
+        if (!this.selection.byKoan()) {
+            return true;
+        }
+        Outline outline;
+        CompileCache.Entry cached = upToDate(srcFile, key);
+        if (cached != null) {
+            outline = new Outline(key, cached.className(), cached.methods());
+        } else {
+            outline = this.outlines.get(srcFile);
+            if (outline == null || !outline.key().equals(key)) {
+                StringWriter output = new StringWriter();
+                TreeVisitor koans = parseOnly(this.compiler, srcFile, output);
+                if (!output.toString().isBlank()) {
+                    // Selected, so the compilation shows what is wrong with it.
+                    return true;
+                }
+                outline = new Outline(key, koans.fullClassName(), koans.methods);
+                this.outlines.put(srcFile, outline);
+            }
+        }
+        for (var nd : outline.methods()) {
+            if (this.selection.selectsKoan(outline.className(), nd.name(), nd.level())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private KoanResult invoke(KoansFile f, KoanMethod m, String method, Reporter log) {
+        long start = System.nanoTime();
+        InvokeEvent event = new InvokeEvent();
+        event.begin();
+        event.koanFile = f.filename.toString();
+        event.koanMethod = method;
+        try {
+            // Right first, and only then timed, with nothing else running.
+            Lock lock = m.budget.measured() ? this.measuring.writeLock() : this.measuring.readLock();
+            TimingHarness.Timing timing;
+            lock.lock();
+            try {
+                timing = this.watchdog.run(() -> {
+                    m.method.invoke(null);
+                    return m.budget.measured() ? TimingHarness.measure(m.method, m.budget) : null;
+                }, method);
+            } finally {
+                lock.unlock();
+            }
+            if (timing != null) {
+                if (!m.budget.met(timing)) {
+                    throw new OverBudgetException("a call of the koan " + m.budget.describe(timing) + ".", timing);
+                }
+                log.info("Koan measured, a call {0}", m.budget.describe(timing));
+            }
+            event.outcome = "done";
+            event.commit();
+            log.event("koan", "koan", method, "file", f.filename, "result", event.outcome,
+                    "nanosPerCall", timing != null && m.budget.timed() ? Math.round(timing.fastest()) : null,
+                    "bytesPerCall", timing != null && timing.bytesPerCall() >= 0 ? timing.bytesPerCall() : null);
+            return new KoanResult(method, event.outcome, System.nanoTime() - start, null, null);
+        } catch (Throwable e) {
+            long nanos = System.nanoTime() - start;
+            event.outcome = e instanceof KoanTimeoutException ? "timeout"
+                    : e instanceof OverBudgetException ? "over-budget"
+                    : e instanceof InvocationTargetException ie && ie.getCause() instanceof AssertionError ? "failed"
+                    : "error";
+            event.commit();
+            // The box is put together here, and written in one piece.
+            Reporter.Block box = log.block();
+            box.info("Invocation failed when running {0}", method);
+            box.info("  /------------------------------------------------------------");
+            for (String line : m.desc.get().split("\\n")) {
+                box.info("  |" + line);
+            }
+            box.info("  |=============================================================");
+            box.info("  |");
+            /*@Nullable*/ Integer lineNumber = null;
+            String message;
+            if (e instanceof InvocationTargetException ie) {
+                if (ie.getCause() instanceof AssertionError ae) {
+                    StackTraceElement frame = ae.getStackTrace()[0];
+                    //TODO: frame.getFileName() should be same as f.filename
+                    box.severe("| {0}:{1}: assert: {2}", f.filename, frame.getLineNumber(), ae.getMessage());
+                    lineNumber = frame.getLineNumber();
+                    message = String.valueOf(ae.getMessage());
+                } else {
+                    box.info("| Unrecognized exception:");
+                    box.info("  |    {0}", ie.getCause().toString());
+                    koanFrames(box, ie.getCause().getStackTrace(), f.classFullName);
+                    message = ie.getCause().toString();
+                }
+            } else if (e instanceof KoanTimeoutException te) {
+                box.severe("| {0}: timeout: {1}", f.filename, te.getMessage());
+                box.info("  |    It was at:");
+                koanFrames(box, te.getStackTrace(), f.classFullName);
+                message = te.getMessage();
+            } else if (e instanceof OverBudgetException ob) {
+                TimingHarness.Timing timing = ob.timing;
+                box.severe("| {0}: over budget: {1}", f.filename, ob.getMessage());
+                if (m.budget.allocationBound() && timing.bytesPerCall() >= 0) {
+                    box.info("  |    The second call allocated {0} bytes.", String.valueOf(timing.bytesPerCall()));
+                }
+                if (m.budget.timed() && timing.rounds() == 0) {
+                    box.info("  |    Far over budget after warming up with {0} calls, so not timed further.",
+                            String.valueOf(timing.warmupCalls()));
+                    box.info("  |    Fastest call {0}, average {1} a call.",
+                            TimingHarness.format(timing.fastest()), TimingHarness.format(timing.median()));
+                } else if (m.budget.timed()) {
+                    box.info("  |    Warmed up with {0} calls, then timed {1} rounds of {2} calls.",
+                            String.valueOf(timing.warmupCalls()), timing.rounds(),
+                            String.valueOf(timing.callsPerRound()));
+                    box.info("  |    Fastest round {0} a call, median {1} a call.",
+                            TimingHarness.format(timing.fastest()), TimingHarness.format(timing.median()));
+                }
+                message = ob.getMessage();
+            } else {
+                box.severe("Inernal ERROR", e);
+                message = e.toString();
+            }
+            box.info("  |");
+            box.info("  \\------------------------------------------------------------");
+            box.report();
+            log.event("koan", "koan", method, "file", f.filename, "result", event.outcome,
+                    "line", lineNumber, "message", message);
+            return new KoanResult(method, event.outcome, nanos, lineNumber, message);
         }
+    }
 
-        public void severe(String fmt, Object... args) {
-            log.log(Level.SEVERE, fmt, args);
+    private void koanFrames(Reporter.Block box, StackTraceElement[] frames, String koanClass) {
+        for (StackTraceElement frame : frames) {
+            // print only top lines which are from koan files, the koan class or a helper.
+            String className = frame.getClassName();
+            int nested = className.indexOf('$');
+            String outerName = nested < 0 ? className : className.substring(0, nested);
+            if (frame.getModuleName() != null
+                    || !(outerName.equals(koanClass) || this.helperClasses.containsKey(outerName))) {
+                box.info("  |        ...");
+                break;
+            }
+            box.info(
+                    "  |        at {0}.{1}({2}:{3})",
+                    frame.getClassName(),
+                    frame.getMethodName(),
+                    frame.getFileName(),
+                    frame.getLineNumber()
+            );
         }
+    }
 
-        public void severe(String msg, Throwable t) {
-            log.log(Level.SEVERE, msg, t);
-        }
+    /**
+     * Runs each koan method on a thread of its own, and gives up on it once it
+     * is over its wall clock or CPU time budget, so a koan looping forever or
+     * stuck on a lock does not hang the runner. The thread given up on is
+     * interrupted and left behind, along with the class loader of its koan,
+     * as nothing can stop a thread which does not look at being interrupted.
+     * It is a daemon thread at the lowest priority, so at least it does not
+     * keep the JVM alive, nor get in the way of the koans after it.
+     */
+    private static class Watchdog {
 
-        public void info(String fmt, Object... args) {
-            log.log(Level.INFO, fmt, args);
+        private static final long CHECK_MILLIS = 10;
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+        private final long wallMillis;
+        private final long cpuMillis;
+
+        public Watchdog(long wallMillis, long cpuMillis) {
+            this.wallMillis = wallMillis;
+            this.cpuMillis = cpuMillis;
+            if (THREADS.isThreadCpuTimeSupported() && !THREADS.isThreadCpuTimeEnabled()) {
+                THREADS.setThreadCpuTimeEnabled(true);
+            }
         }
 
+        /**
+         * Call the koan, returning what it returns, throwing what it throws,
+         * or KoanTimeoutException when over the budget.
+         */
+        public <T> T run(Callable<T> koan, String name)
+                throws Throwable {
+            List<T> result = new ArrayList<>(1);
+            Throwable[] failure = new Throwable[1];
+            // A platform thread, as there is no CPU time for a virtual one.
+            Thread thread = Thread.ofPlatform().daemon().name(name).unstarted(() -> {
+                try {
+                    result.add(koan.call());
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            });
+            long start = System.nanoTime();
+            thread.start();
+            while (!thread.join(Duration.ofMillis(CHECK_MILLIS))) {
+                long wall = (System.nanoTime() - start) / 1_000_000;
+                // -1 when CPU time is not supported, leaving the wall clock to do.
+                long cpu = THREADS.getThreadCpuTime(thread.threadId()) / 1_000_000;
+                if (wall > this.wallMillis || cpu > this.cpuMillis) {
+                    StackTraceElement[] stack = thread.getStackTrace();
+                    thread.interrupt();
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    throw new KoanTimeoutException(MessageFormat.format(
+                            "the koan ran for {0} ms, using {1} ms of CPU time, and the budget is {2} ms, and {3} ms of CPU time.",
+                            wall, Math.max(cpu, 0), this.wallMillis, this.cpuMillis), stack);
+                }
+            }
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+            return result.get(0);
+        }
     }
 
-    private static class Filter implements BiPredicate<Path, String> {
+    private static class KoanTimeoutException extends Exception {
 
-        private final String[] args;
+        private static final long serialVersionUID = 1L;
 
-        public Filter(String[] args) {
-            this.args = args;
+        public KoanTimeoutException(String message, StackTraceElement[] stack) {
+            super(message);
+            setStackTrace(stack);
         }
+    }
+
+    private record KoanMethod(String name, String level, Budget budget, Method method, Supplier<String> desc) {
 
-        @Override
-        public boolean test(Path t, String u) {
-            return t.toString().contains(this.args[0]);
-        }
     }
 
-    public static void main(String[] args) {
+    /**
+     * What a call of a performance koan may cost: the time from the @perf
+     * tag of its doc, e.g. "@perf 200us", with ns, us or ms, and the bytes
+     * allocated from the @alloc tag, e.g. "@alloc 0", with B, KB or MB. The
+     * koans without them have no budget, and nor do the ones with a tag
+     * which does not read. No time is 0, and no allocation limit -1, as 0
+     * bytes is the budget of an allocation free koan.
+     */
+    private record Budget(long nanos, long bytes) {
 
-        if (Files.exists(CLASSPATH)) {
-            if (!Files.isDirectory(CLASSPATH)) {
-                LOG.severe("Build directory {0} is not a directory !", CLASSPATH);
-                return;
-            }
-        } else {
-            if (!CLASSPATH.toFile().mkdirs()) {
-                LOG.severe("Error creating Build directory {0} !", CLASSPATH);
-                return;
+        static final Budget NONE = new Budget(0, -1);
+        private static final Pattern PERF = Pattern.compile("(\\d+)\\s*(ns|us|ms)");
+        private static final Pattern ALLOC = Pattern.compile("(\\d+)\\s*(B|KB|MB)?");
+
+        Budget withNanos(String perf) {
+            Matcher m = PERF.matcher(perf);
+            if (!m.matches()) {
+                return this;
             }
+            long unit = switch (m.group(2)) {
+                case "us" -> 1_000L;
+                case "ms" -> 1_000_000L;
+                default -> 1L;
+            };
+            return new Budget(Long.parseLong(m.group(1)) * unit, this.bytes);
         }
 
-        // Right now, the command line argument is only to select a subset of koans to run,
-        // and is oriented for the developer of koans, rather than the user of koans.
-        BiPredicate<Path, String> filterPred = (args.length == 0) ? (a, b) -> true : new Filter(args);
-        try {
-            Main runner = new Main(HELPER_FILES_LISTFILE, KOAN_FILES_LISTFILE, KOAN_SOURCE_FOLDER, CLASSPATH, filterPred);
-            runner.runKoans();
-        } catch (Exception e) {
-            LOG.severe("Caught unexpected exception", e);
+        Budget withBytes(String alloc) {
+            Matcher m = ALLOC.matcher(alloc);
+            if (!m.matches()) {
+                return this;
+            }
+            long unit = m.group(2) == null ? 1L : switch (m.group(2)) {
+                case "KB" -> 1L << 10;
+                case "MB" -> 1L << 20;
+                default -> 1L;
+            };
+            return new Budget(this.nanos, Long.parseLong(m.group(1)) * unit);
         }
-    }
 
-    private final Path helperFilesListfile;
-    private final Path koanFilesListfile;
-    private final Path koanSourceFolder;
-    private final Path koanClasspath;
-    private final BiPredicate<Path, String> filterPred;
-    private final WatchService watcher;
-    private final Set<Path> watchedFolders = new HashSet<>();
+        boolean timed() {
+            return this.nanos > 0;
+        }
 
-    private Main(Path helperFilesListfile,
-            Path koanFilesListFile,
-            Path koanSourceFolder,
-            Path koanClasspath,
-            BiPredicate<Path, String> filterPred)
-            throws IOException {
-        this.helperFilesListfile = helperFilesListfile;
-        this.koanFilesListfile = koanFilesListFile;
-        this.koanSourceFolder = koanSourceFolder;
-        this.koanClasspath = koanClasspath;
-        this.filterPred = filterPred;
+        boolean allocationBound() {
+            return this.bytes >= 0;
+        }
 
-        this.watcher = FileSystems.getDefault().newWatchService();
-    }
+        boolean measured() {
+            return timed() || allocationBound();
+        }
 
-    private static class ByteClassLoader extends URLClassLoader {
+        boolean met(TimingHarness.Timing timing) {
+            return (!timed() || timing.fastest() <= this.nanos)
+                    && (!allocationBound() || timing.bytesPerCall() < 0 || timing.bytesPerCall() <= this.bytes);
+        }
 
-        public ByteClassLoader(Path classPath) throws MalformedURLException {
-            super(new URL[]{classPath.toUri().toURL()}, ByteClassLoader.class.getClassLoader());
-            this.setDefaultAssertionStatus(true);
+        /**
+         * What a call cost, next to the budget for it, e.g. "took 2.00 ms,
+         * with a budget of 1.00 ms".
+         */
+        String describe(TimingHarness.Timing timing) {
+            List<String> costs = new ArrayList<>(2);
+            if (timed()) {
+                costs.add("took " + TimingHarness.format(timing.fastest()) + ", with a budget of "
+                        + TimingHarness.format(this.nanos));
+            }
+            if (allocationBound()) {
+                costs.add(timing.bytesPerCall() < 0
+                        ? "allocated what this JVM can not count"
+                        : "allocated " + timing.bytesPerCall() + " bytes, with a budget of " + this.bytes);
+            }
+            return String.join(", and ", costs);
         }
     }
 
-    private static class TreeVisitor extends SimpleTreeVisitor<Void, CompilationUnitTree> {
-
-        private record NameDoc(String name, String doc) {
+    /**
+     * Measures a performance koan. The bytes it allocates are counted around
+     * a single call, after a first one so what is done once, like linking
+     * the call, is not counted, and before the JIT has compiled the koan, as
+     * escape analysis can then take away much of what the code allocates,
+     * boxing in particular, and a koan is about the code. For the time, it
+     * is called over and over to warm it up, and then in rounds, each round
+     * timed. The time of a call is from the fastest round, as the slower
+     * ones had a GC or something else in them. The calls go through a
+     * MethodHandle, which once compiled costs about what a direct call does.
+     */
+    private static class TimingHarness {
+
+        private static final long WARMUP_NANOS = 300_000_000L;
+        private static final long ROUND_NANOS = 20_000_000L;
+        private static final int ROUNDS = 10;
+        // The rounds stop short after this long, well within the CPU budget of
+        // the watchdog, and a koan this many times over its budget while warming
+        // up is not timed in rounds at all.
+        private static final long MAX_ROUNDS_NANOS = 1_000_000_000L;
+        private static final int FAR_OVER = 10;
+        private static final com.sun.management.ThreadMXBean THREADS =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        // Without a time budget the koan is not timed, and has no rounds, and
+        // the bytes a call allocates are -1 when the JVM can not count them.
+        // Far over budget, it has no rounds either, and the fastest and
+        // average call of the warm-up instead.
+        record Timing(long warmupCalls, int rounds, long callsPerRound, double fastest, double median,
+                long bytesPerCall) {
 
         }
-        private final List<NameDoc> methods;
-        private final DocTrees docTree;
-        private final Iterable<? extends CompilationUnitTree> asts;
-        private String packageName;
-        private String className;
 
-        public TreeVisitor(JavacTask task) throws IOException {
-            this.methods = new ArrayList<>();
-            this.docTree = DocTrees.instance(task);
-            this.asts = task.parse();
-        }
+        /**
+         * Measure the static method for the budget, throwing what it throws,
+         * wrapped as Method.invoke does.
+         */
+        static Timing measure(Method method, Budget budget)
+                throws IllegalAccessException, InvocationTargetException {
+            MethodHandle koan = MethodHandles.publicLookup().unreflect(method);
+            try {
+                long bytesPerCall = -1;
+                if (budget.allocationBound() && THREADS.isThreadAllocatedMemorySupported()
+                        && THREADS.isThreadAllocatedMemoryEnabled()) {
+                    koan.invokeExact();
+                    long allocated = THREADS.getCurrentThreadAllocatedBytes();
+                    koan.invokeExact();
+                    bytesPerCall = THREADS.getCurrentThreadAllocatedBytes() - allocated;
+                }
+                if (!budget.timed()) {
+                    return new Timing(0, 0, 0, 0, 0, bytesPerCall);
+                }
 
-        public TreeVisitor visit() throws IOException {
-            for (CompilationUnitTree ast : asts) {
-                visit(ast.getPackage(), ast);
-                visit(ast.getTypeDecls(), ast);
+                long warmupCalls = 0;
+                long fastestCall = Long.MAX_VALUE;
+                long start = System.nanoTime();
+                long now = start;
+                do {
+                    koan.invokeExact();
+                    long end = System.nanoTime();
+                    fastestCall = Math.min(fastestCall, end - now);
+                    now = end;
+                    warmupCalls++;
+                } while (now - start < WARMUP_NANOS && !Thread.currentThread().isInterrupted());
+                if (fastestCall > FAR_OVER * budget.nanos()) {
+                    return new Timing(warmupCalls, 0, 0, fastestCall, (double) (now - start) / warmupCalls,
+                            bytesPerCall);
+                }
+                long callsPerRound = Math.max(1, ROUND_NANOS * warmupCalls / (now - start));
+
+                double[] rounds = new double[ROUNDS];
+                int timed = 0;
+                long roundsStart = System.nanoTime();
+                while (timed < ROUNDS && !Thread.currentThread().isInterrupted()
+                        && (timed == 0 || System.nanoTime() - roundsStart < MAX_ROUNDS_NANOS)) {
+                    long roundStart = System.nanoTime();
+                    for (long c = 0; c < callsPerRound; c++) {
+                        koan.invokeExact();
+                    }
+                    rounds[timed++] = (double) (System.nanoTime() - roundStart) / callsPerRound;
+                }
+                Arrays.sort(rounds, 0, timed);
+                return new Timing(warmupCalls, timed, callsPerRound, rounds[0], rounds[timed / 2], bytesPerCall);
+            } catch (Throwable e) {
+                throw new InvocationTargetException(e);
             }
-            return this;
         }
 
-        @Override
-        public Void visitClass(ClassTree node, CompilationUnitTree ast) {
-            if (node.getModifiers().getFlags().contains(Modifier.PUBLIC)) {
-                this.className = node.getSimpleName().toString();
-                return visit(node.getMembers(), ast);
+        static String format(double nanos) {
+            if (nanos < 1_000) {
+                return String.format("%.0f ns", nanos);
+            } else if (nanos < 1_000_000) {
+                return String.format("%.1f us", nanos / 1_000);
             }
-            return null;
+            return String.format("%.2f ms", nanos / 1_000_000);
         }
+    }
 
-        @Override
-        public Void visitMethod(MethodTree node, CompilationUnitTree ast) {
-            String name = node.getName().toString();
-            // Only > public static void fn()
-            if (node.getModifiers().getFlags().containsAll(List.of(Modifier.PUBLIC, Modifier.STATIC))
-                    && node.getParameters().isEmpty()
-                    && node.getReturnType() instanceof PrimitiveTypeTree prim
-                    && prim.getPrimitiveTypeKind().equals(TypeKind.VOID)) {
-                DocCommentTree javaDoc = docTree.getDocCommentTree(TreePath.getPath(ast, node));
-                NameDoc km = new NameDoc(name, " " + javaDoc);
-                methods.add(km);
-            }
-            return null;
-        }
+    private static class OverBudgetException extends Exception {
 
-        @Override
-        public Void visitPackage(PackageTree node, CompilationUnitTree p) {
-            this.packageName = node.getPackageName().toString();
-            return null;
-        }
+        private static final long serialVersionUID = 1L;
+
+        private final transient TimingHarness.Timing timing;
 
+        public OverBudgetException(String message, TimingHarness.Timing timing) {
+            super(message);
+            this.timing = timing;
+        }
     }
 
-    private void runKoans()
-            throws Exception {
+    private record Outline(String key, String className, List<TreeVisitor.NameDoc> methods) {
 
-        boolean finished = false;
-        Set<String> finishedKoans = new HashSet<>();
-        while (!finished) {
-            List<Path> helperFiles = new ArrayList<>();
-            List<Path> koanFiles = new ArrayList<>();
+    }
+
+    // The key is of the source and of the helpers, as a helper can be the fix.
+    private record CompileFailure(String key, List<CompilerMessage> messages) {
 
-            finished = checkFiles(helperFiles, koanFiles)
-                    && compileHelperFiles(this.koanClasspath, helperFiles)
-                    && runAllKoans(finishedKoans, koanFiles);
-            if (!finished) {
-                waitForSourceChange();
-            }
-        }
-        LOG.info("Congratulations, you finished koans!");
     }
 
-    public void waitForSourceChange()
-            throws IOException, InterruptedException {
-        boolean foundSourceChange = false;
-        LOG.info("");
-        LOG.info("Edit the file(s) and save to continue");
-        LOG.info("");
-        while (!foundSourceChange) {
-            watchFolder(this.koanSourceFolder);
+    private record KoansFile(Path filename, String key, String classFullName, Class<?> klass, List<KoanMethod> methods) {
 
-            for (WatchKey e = watcher.poll(); e != null; e = watcher.poll()) {
-                e.pollEvents();
-                e.reset();
-            }
+    }
 
-            WatchKey w = watcher.take();
-            Thread.sleep(300);
-            foundSourceChange = javaSourceEvent(foundSourceChange, w.pollEvents());
-            w.reset();
-            for (WatchKey e = watcher.poll(); e != null; e = watcher.poll()) {
-                foundSourceChange = javaSourceEvent(foundSourceChange, e.pollEvents());
-                e.reset();
-            }
+    private static KoansFile bindClass(ClassLoader parent, ClassStore classStore, Path koanFile, String key,
+            String className, List<TreeVisitor.NameDoc> nameDocs)
+            throws ClassNotFoundException, NoSuchMethodException {
+        final Class<?> loadedClass = loadClassAgain(parent, classStore, className);
+
+        List<KoanMethod> methods = new ArrayList<>(nameDocs.size());
+        for (var nd : nameDocs) {
+            Method m = loadedClass.getMethod(nd.name);
+            methods.add(new KoanMethod(nd.name, nd.level, nd.budget, m, nd.doc));
         }
+        return new KoansFile(koanFile, key, className, loadedClass, methods);
     }
 
-    private static boolean javaSourceEvent(boolean srcChange, List<WatchEvent<?>> events) {
-        if (srcChange) {
-            return true;
-        }
-        for (WatchEvent<?> event : events) {
-            @SuppressWarnings("unchecked")
-            WatchEvent<Path> ev = (WatchEvent<Path>) event;
-            if (isJavaSource(ev.context())) {
-                return true;
-            }
-        }
-        return false;
+    /**
+     * Load a koan class with a new loader, so it is loaded again even if an
+     * older copy of it is still around.
+     *
+     * @param parent the loader of the helper classes
+     */
+    static Class<?> loadClassAgain(ClassLoader parent, ClassStore classStore, String className)
+            throws ClassNotFoundException {
+        LoadClassEvent event = new LoadClassEvent();
+        event.begin();
+        event.className = className;
+        Class<?> loaded = new ByteClassLoader(parent, classStore, null).loadClass(className);
+        event.commit();
+        return loaded;
     }
 
-    private boolean checkFiles(List<Path> helperFiles, List<Path> koanFiles)
-            throws IOException {
+    /**
+     * What a compilation produced: the binary names of the generated classes,
+     * and the koans found in each source file while it was being parsed.
+     */
+    record Compiled(boolean success, Map<Path, List<String>> classes, Map<Path, TreeVisitor> sources,
+            List<CompilerMessage> messages) {
 
-        Set<Path> diskJavaFiles = new HashSet<>();
-        getDiskJavaFiles(diskJavaFiles, this.koanSourceFolder);
+    }
 
-        helperFiles.addAll(readList(this.koanSourceFolder, this.helperFilesListfile));
-        koanFiles.addAll(readList(this.koanSourceFolder, this.koanFilesListfile));
+    /**
+     * What javac had to say about a source, with the line it is about. Unlike
+     * a Diagnostic, it does not hold on to the whole compilation.
+     */
+    record CompilerMessage(Diagnostic.Kind kind, /*@Nullable*/ Path file, long line, long column, String message,
+            String excerpt) {
 
-        boolean ret = true;
-        // Some set jugglery now.
-        Set<Path> common = intersection(helperFiles, koanFiles);
-        if (!common.isEmpty()) {
-            LOG.severe("HELPERS and SOURCES in Main.java have common elements:{0}", common);
-            ret = false;
+        static CompilerMessage of(Diagnostic<? extends JavaFileObject> d) {
+            Path file = d.getSource() != null ? Paths.get(d.getSource().getName()) : null;
+            return new CompilerMessage(d.getKind(), file, d.getLineNumber(), d.getColumnNumber(),
+                    d.getMessage(Locale.getDefault()), excerpt(d));
         }
-        Set<Path> list = union(helperFiles, koanFiles);
-        Set<Path> missingOnDisk = difference(list, diskJavaFiles);
-        Set<Path> extraOnDisk = difference(diskJavaFiles, list);
-        if (!missingOnDisk.isEmpty()) {
-            List<Path> actual = missingOnDisk.stream().filter(Main::isJavaSource).toList();
-            if (!actual.isEmpty()) {
-                LOG.severe("Files missing on disk:  {0}", missingOnDisk);
+
+        private static String excerpt(Diagnostic<? extends JavaFileObject> d) {
+            if (d.getSource() == null || d.getPosition() == Diagnostic.NOPOS) {
+                return "";
             }
-            ret = false;
-        }
-        if (!extraOnDisk.isEmpty()) {
-            List<Path> actual = extraOnDisk.stream().filter(Main::isJavaSource).toList();
-            if (!actual.isEmpty()) {
-                LOG.severe("Files missing in {0} or {1}: {2}", this.helperFilesListfile, this.koanFilesListfile, extraOnDisk);
+            try {
+                CharSequence content = d.getSource().getCharContent(true);
+                int pos = (int) Math.min(d.getPosition(), content.length());
+                int start = pos;
+                while (start > 0 && content.charAt(start - 1) != '\n' && content.charAt(start - 1) != '\r') {
+                    start--;
+                }
+                int end = pos;
+                while (end < content.length() && content.charAt(end) != '\n' && content.charAt(end) != '\r') {
+                    end++;
+                }
+                return content.subSequence(start, end).toString();
+            } catch (IOException e) {
+                return "";
             }
-            ret = false;
         }
-        return ret;
-    }
 
-    private static boolean isJavaSource(Path p) {
-        String f = p.getFileName().toString();
-        return f.endsWith(".java") && !f.startsWith(".");
-    }
+        public String label() {
+            return switch (this.kind) {
+                case ERROR ->
+                    "error";
+                case WARNING, MANDATORY_WARNING ->
+                    "warning";
+                case NOTE ->
+                    "note";
+                case OTHER ->
+                    "";
+            };
+        }
 
-    // Note that this assumes that on case insensitive file system, the extension java is lower case.
-    private static void getDiskJavaFiles(Set<Path> output, Path folder)
-            throws IOException {
-        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
-            for (Path file : files) {
-                String name = file.getFileName().toString();
-                if (Files.isDirectory(file) && !"..".equals(name) && !".".equals(name)) {
-                    getDiskJavaFiles(output, file);
-                } else if (isJavaSource(file)) {
-                    output.add(file);
-                }
+        /**
+         * Spaces, or the tabs of the excerpt, up to the column, for a caret
+         * under it.
+         */
+        public String indent() {
+            StringBuilder indent = new StringBuilder();
+            for (int i = 0; i < this.column - 1 && i < this.excerpt.length(); i++) {
+                indent.append(this.excerpt.charAt(i) == '\t' ? '\t' : ' ');
             }
+            return indent.toString();
         }
     }
 
-    private static List<Path> readList(Path sourceFolder, Path txtFile)
+    /**
+     * Compile one or more files together, and leave the classes in the
+     * ClassStore. The koan methods are collected from the same javac run,
+     * as each file is parsed, so there is no second parse to find them.
+     * Error message are sent to the screen. The files should have the
+     * KOAN_FOLDER prefix.
+     */
+    private Compiled compile(List<Path> fileNames)
             throws IOException {
-        return Files.readAllLines(txtFile, StandardCharsets.UTF_8)
-                .stream()
-                .map(line -> line.replaceFirst("#.*", "").trim())
-                .filter(line -> !line.isBlank())
-                .map(line -> sourceFolder.resolve(line))
-                .toList();
-    }
-
-    private static boolean compileHelperFiles(Path classPath, List<Path> helperFiles) {
-        if (helperFiles.isEmpty()) {
-            return true;
-        }
-        boolean status = compile(classPath, helperFiles);
-        if (!status) {
-            LOG.severe("Compilation of helper classes has failed, which should not happen.");
+        Compiled compiled = runJavac(this.compiler, this.classStore, fileNames, new StringWriter(), List.of());
+        if (compiled.success()) {
+            this.log.event("compile", "files", fileNames, "result", "done");
+        } else {
+            reportCompileFailure(fileNames, compiled.messages());
         }
-        return status;
+        return compiled;
     }
 
-    private boolean runAllKoans(Set<String> finishedKoans, List<Path> koanFiles)
-            throws IOException, ClassNotFoundException, NoSuchMethodException {
-        int totalClass = koanFiles.size();
-        int currClass = 0;
-        for (Path srcFile : koanFiles) {
-            currClass++;
-            if (this.filterPred.test(srcFile, "")) {
-                boolean compilationStatus = compile(this.koanClasspath, List.of(srcFile));
-                if (!compilationStatus) {
-                    return false;
-                }
-
-                /*@Nullable*/
-                KoansFile koanFile = loadClass(this.koanClasspath, srcFile);
-                if (koanFile == null) {
-                    return false;
-                }
-
-                if (!finishedKoans.contains(koanFile.classFullName)) {
-                    if (!runSingleKoan(finishedKoans, koanFile)) {
-                        return false;
-                    }
-                    finishedKoans.add(koanFile.classFullName);
-                    LOG.info("Koan set done [{0}/{1}]: {2}", currClass, totalClass, koanFile.classFullName);
-                } else {
-                    LOG.info("Koan set skipped [{0}/{1}]: {2}", currClass, totalClass, koanFile.classFullName);
-                }
-            }
+    // The messages of javac as JSON.
+    private static List<Map<String, Object>> diagnostics(List<CompilerMessage> messages) {
+        List<Map<String, Object>> diagnostics = new ArrayList<>();
+        for (CompilerMessage m : messages) {
+            Map<String, Object> d = new LinkedHashMap<>();
+            d.put("kind", m.label());
+            d.put("file", m.file());
+            d.put("line", m.line());
+            d.put("column", m.column());
+            d.put("message", m.message());
+            diagnostics.add(d);
         }
-        return true;
+        return diagnostics;
     }
 
-    private boolean runSingleKoan(Set<String> finishedKoans, KoansFile koanFile) {
-        int total = koanFile.methods.size();
-        int curr = 0;
-        for (KoanMethod m : koanFile.methods) {
-            curr++;
-            String methodName = koanFile.classFullName + "::" + m.name;
-            if (!finishedKoans.contains(methodName)) {
-                boolean invokeStatus = invoke(koanFile, m, methodName);
-                if (!invokeStatus) {
-                    return false;
-                }
-                LOG.info("Koan done  [{0}/{1}]: {2}", curr, total, methodName);
-                finishedKoans.add(methodName);
+    /**
+     * Show the first thing javac had to say, which is the one to fix first,
+     * with the line of source it is about.
+     */
+    private void reportCompileFailure(List<Path> fileNames, List<CompilerMessage> messages) {
+        Reporter.Block box = this.log.block();
+        box.severe("Compilation failed when compiling {0}", fileNames);
+        box.info("  /------------------------------------------------------------");
+        box.info("  |");
+        List<CompilerMessage> shown = messages.stream().filter(m -> m.kind() != Diagnostic.Kind.NOTE).toList();
+        if (shown.isEmpty()) {
+            shown = messages;
+        }
+        if (!shown.isEmpty()) {
+            CompilerMessage m = shown.get(0);
+            String[] lines = m.message().split("\\R");
+            if (m.file() != null) {
+                box.severe("| {0}:{1}:{2}: {3}: {4}", m.file(), String.valueOf(m.line()), String.valueOf(m.column()),
+                        m.label(), lines[0]);
             } else {
-                LOG.info("Koan skipped [{0}/{1}]: {2}", curr, total, methodName);
+                box.severe("| {0}: {1}", m.label(), lines[0]);
+            }
+            if (!m.excerpt().isEmpty()) {
+                box.info("  |     {0}", m.excerpt());
+                box.info("  |     {0}^", m.indent());
+            }
+            for (int i = 1; i < lines.length; i++) {
+                box.info("  | {0}", lines[i]);
+            }
+            if (shown.size() > 1) {
+                box.info("  |");
+                box.info("  | only showing the first one, of {0} in total", shown.size());
             }
         }
-        return true;
+        box.info("  \\------------------------------------------------------------");
+        box.report();
+        this.log.event("compile", "files", fileNames, "result", "failed", "diagnostics", diagnostics(messages));
     }
 
-    private boolean invoke(KoansFile f, KoanMethod m, String method) {
-        try {
-            m.method.invoke(null);
-            return true;
-        } catch (Throwable e) {
-            LOG.info("Invocation failed when running {0}", method);
-            LOG.info("  /------------------------------------------------------------");
-            for (String line : m.desc.split("\\n")) {
-                LOG.info("  |" + line);
-            }
-            LOG.info("  |=============================================================");
-            LOG.info("  |");
-            if (e instanceof InvocationTargetException ie) {
-                if (ie.getCause() instanceof AssertionError ae) {
-                    StackTraceElement frame = ae.getStackTrace()[0];
-                    //TODO: frame.getFileName() should be same as f.filename
-                    LOG.severe("| {0}:{1}: assert: {2}", f.filename, frame.getLineNumber(), ae.getMessage());
+    static Compiled runJavac(CompilationService compiler,
+            ClassStore classStore,
+            List<Path> fileNames,
+            StringWriter output,
+            List<String> extraOptions)
+            throws IOException {
+        CompileEvent event = new CompileEvent();
+        event.begin();
+        var diagnostics = new DiagnosticCollector<JavaFileObject>();
+        Compiled compiled = compiler.withTask(output, diagnostics, extraOptions, classStore, fileNames, task -> {
+            DocTrees docTrees = DocTrees.instance(task);
+            Map<Path, List<String>> classes = new HashMap<>();
+            Map<Path, TreeVisitor> sources = new HashMap<>();
+            Map<Path, ParseEvent> parses = new HashMap<>();
+            task.addTaskListener(new TaskListener() {
+                @Override
+                public void started(TaskEvent e) {
+                    if (e.getKind() == TaskEvent.Kind.PARSE) {
+                        ParseEvent parse = new ParseEvent();
+                        parse.begin();
+                        parses.put(Paths.get(e.getSourceFile().getName()), parse);
+                    }
+                }
 
-                } else {
-                    LOG.info("| Unrecognized exception:");
-                    LOG.info("  |    {0}", ie.getCause().toString());
-                    for (StackTraceElement frame : ie.getCause().getStackTrace()) {
-                        // print only top lines which are from koan files.
-                        if (frame.getModuleName() != null) {
-                            LOG.info("  |        ...");
-                            break;
+                @Override
+                public void finished(TaskEvent e) {
+                    switch (e.getKind()) {
+                        case PARSE -> {
+                            Path source = Paths.get(e.getSourceFile().getName());
+                            TreeVisitor visitor = new TreeVisitor(docTrees).visit(e.getCompilationUnit());
+                            sources.put(source, visitor);
+                            ParseEvent parse = parses.remove(source);
+                            if (parse != null) {
+                                parse.sourceFile = source.toString();
+                                parse.koanMethods = visitor.methods.size();
+                                parse.commit();
+                            }
+                        }
+                        case GENERATE ->
+                            classes.computeIfAbsent(Paths.get(e.getSourceFile().getName()), k -> new ArrayList<>())
+                                    .add(task.getElements().getBinaryName(e.getTypeElement()).toString());
+                        default -> {
                         }
-                        LOG.info(
-                                "  |        at {0}.{1}({2}:{3})",
-                                frame.getClassName(),
-                                frame.getMethodName(),
-                                frame.getFileName(),
-                                frame.getLineNumber()
-                        );
                     }
                 }
-            } else {
-                LOG.severe("Inernal ERROR", e);
+            });
+            var status = task.call();
+            List<CompilerMessage> messages = new ArrayList<>();
+            for (var d : diagnostics.getDiagnostics()) {
+                messages.add(CompilerMessage.of(d));
             }
-            LOG.info("  |");
-            LOG.info("  \\------------------------------------------------------------");
-            return false;
+            return new Compiled(status != null && status, classes, sources, messages);
+        });
+        // The duration is the compile alone, and not the reading of the classes below.
+        event.end();
+        if (event.shouldCommit()) {
+            event.sourceFiles = fileNames.toString();
+            event.success = compiled.success();
+            for (List<String> names : compiled.classes().values()) {
+                for (String name : names) {
+                    byte[] bytes = classStore.read(name);
+                    event.classes++;
+                    event.bytes += bytes == null ? 0 : bytes.length;
+                }
+            }
+            event.commit();
         }
+        return compiled;
     }
 
-    private record KoanMethod(String name, Method method, String desc) {
+    /*
+     * The stages of a pass, as JFR events, to see where the time goes when
+     * recording with -XX:StartFlightRecording. When not recording, an event
+     * costs little more than the check that it is not enabled.
+     */
+    @Name("koans.CheckFiles")
+    @Label("Check Files")
+    @Category("Java Koans")
+    private static class CheckFilesEvent extends Event {
+
+        @Label("Helper Files")
+        int helperFiles;
+        @Label("Koan Files")
+        int koanFiles;
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("koans.CompileHelpers")
+    @Label("Compile Helpers")
+    @Category("Java Koans")
+    private static class CompileHelpersEvent extends Event {
+
+        @Label("Helper Files")
+        int helperFiles;
+        @Label("Cached")
+        boolean cached;
+        @Label("Success")
+        boolean success;
+    }
 
+    @Name("koans.Compile")
+    @Label("Compile")
+    @Category("Java Koans")
+    private static class CompileEvent extends Event {
+
+        @Label("Source Files")
+        String sourceFiles;
+        @Label("Success")
+        boolean success;
+        @Label("Classes")
+        int classes;
+        @Label("Class Bytes")
+        @DataAmount
+        long bytes;
     }
 
-    private record KoansFile(Path filename, String classFullName, Class<?> klass, List<KoanMethod> methods) {
+    @Name("koans.Parse")
+    @Label("Parse")
+    @Description("Parsing a source file, and finding its koans")
+    @Category("Java Koans")
+    private static class ParseEvent extends Event {
 
+        @Label("Source File")
+        String sourceFile;
+        @Label("Koan Methods")
+        int koanMethods;
     }
 
-    private static /*@Nullable */ KoansFile loadClass(Path classPath, Path koanFile)
-            throws IOException, ClassNotFoundException, NoSuchMethodException {
+    @Name("koans.LoadClass")
+    @Label("Load Class")
+    @Category("Java Koans")
+    private static class LoadClassEvent extends Event {
+
+        @Label("Class Name")
+        String className;
+    }
 
-        StringWriter output = new StringWriter();
-        JavacTask task = (JavacTask) getCompilationTask(output, classPath, List.of(koanFile));
-        var treeVisitor = new TreeVisitor(task).visit();
+    @Name("koans.Invoke")
+    @Label("Invoke")
+    @Category("Java Koans")
+    private static class InvokeEvent extends Event {
+
+        @Label("Koan File")
+        String koanFile;
+        @Label("Koan Method")
+        String koanMethod;
+        @Label("Outcome")
+        String outcome;
+    }
 
-        String className = treeVisitor.packageName != null
-                ? (treeVisitor.packageName + "." + treeVisitor.className)
-                : treeVisitor.className;
+    private static Path classFile(Path classPath, String binaryName) {
+        return classPath.resolve(binaryName.replace('.', '/') + ".class");
+    }
 
-        final Class<?> loadedClass = loadClassAgain(classPath, className);
+    private static final Pattern DESCRIPTOR_CLASS = Pattern.compile("L([^;<]+)[;<]");
 
-        List<KoanMethod> methods = new ArrayList<>(treeVisitor.methods.size());
-        for (var nd : treeVisitor.methods) {
-            Method m = loadedClass.getMethod(nd.name);
-            methods.add(new KoanMethod(nd.name, m, nd.doc));
+    /**
+     * The binary names of the classes a class file refers to: the class
+     * entries of its constant pool, and the classes in its descriptors and
+     * signatures.
+     */
+    private static Set<String> referencedClasses(/*@Nullable*/ byte[] classFile)
+            throws IOException {
+        Set<String> names = new HashSet<>();
+        if (classFile == null) {
+            return names;
+        }
+        List<Integer> classIndexes = new ArrayList<>();
+        String[] utf8 = constantPool(classFile, classIndexes);
+        for (int index : classIndexes) {
+            String name = utf8[index];
+            if (name != null && !name.startsWith("[")) {
+                names.add(name.replace('/', '.'));
+            }
+        }
+        for (String s : utf8) {
+            if (s != null && s.indexOf(';') >= 0) {
+                Matcher m = DESCRIPTOR_CLASS.matcher(s);
+                while (m.find()) {
+                    names.add(m.group(1).replace('/', '.'));
+                }
+            }
         }
-        return new KoansFile(koanFile, className, loadedClass, methods);
+        return names;
     }
 
-    private static Class<?> loadClassAgain(Path classPath, String className)
-            throws MalformedURLException, IOException, ClassNotFoundException {
-        try (ByteClassLoader classLoader = new ByteClassLoader(classPath)) {
-            return classLoader.loadClass(className);
-        }
+    /**
+     * Whether a class file has fields with a constant value, which javac
+     * copies into the classes using them. The name of the ConstantValue
+     * attribute is only in the constant pool when some field has one, or
+     * when a string is spelled the same, which at worst counts one too many.
+     */
+    private static boolean declaresConstants(/*@Nullable*/ byte[] classFile)
+            throws IOException {
+        return classFile != null
+                && Arrays.asList(constantPool(classFile, new ArrayList<>())).contains("ConstantValue");
     }
 
     /**
-     * Compile one or more files together, and leave the classes in
-     * CLASS_FOLDER. Only tells about the success and failure, not about the
-     * class file generated. Error message are sent to the screen. The files
-     * should have the KOAN_FOLDER prefix.
-     *
-     * @return true if compilation succeed, false if compilation failed
-     */
-    private static boolean compile(Path classPath, List<Path> fileNames) {
-        StringWriter output = new StringWriter();
-        var task = getCompilationTask(output, classPath, fileNames);
-        var status = task.call();
-        String out = output.toString();
-        if (!out.isBlank()) {
-            LOG.severe("Compilation failed when compiling {0}", fileNames);
-            LOG.info("  /------------------------------------------------------------");
-            LOG.info("  |");
-            for (String line : out.split("\\n")) {
-                if (line.contains(": error:")) {
-                    LOG.severe("| {0}", line);
-                } else {
-                    LOG.info("  | {0}", line);
+     * The UTF8 entries of the constant pool of a class file, by index, and
+     * the indexes of the names of its class entries.
+     */
+    private static String[] constantPool(byte[] classFile, List<Integer> classIndexes)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+        in.skipBytes(8); // magic, minor and major version
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1 ->
+                    utf8[i] = in.readUTF();
+                case 7 ->
+                    classIndexes.add(in.readUnsignedShort());
+                case 8, 16, 19, 20 ->
+                    in.skipBytes(2);
+                case 15 ->
+                    in.skipBytes(3);
+                case 3, 4, 9, 10, 11, 12, 17, 18 ->
+                    in.skipBytes(4);
+                case 5, 6 -> {
+                    // Long and double take two entries.
+                    in.skipBytes(8);
+                    i++;
                 }
+                default ->
+                    throw new IOException("Unknown constant pool tag " + tag);
             }
-            LOG.info("  \\------------------------------------------------------------");
-        }
-        if (status != null && status) {
-            return true;
-        } else {
-            return false;
         }
+        return utf8;
     }
 
-    private static JavaCompiler.CompilationTask getCompilationTask(StringWriter output, Path classPath, List<Path> sourceFiles) {
-        String cp = classPath.toAbsolutePath().toString();
-
-        List<String> options
-                = List.of("-g", "-cp", cp, "-d", cp,
-                        "-Werror", "-Xdiags:verbose", "-Xlint", "-Xmaxerrs", "1");
-        String[] fileNames = new String[sourceFiles.size()];
-        for (int j = 0; j < fileNames.length; j++) {
-            fileNames[j] = sourceFiles.get(j).toString();
+    /**
+     * Hash of the compiler options and the sources of a compilation. The
+     * helpers a koan file compiles against are checked apart, through the
+     * dependencies in its cache entry.
+     */
+    private String compileKey(List<Path> sourceFiles)
+            throws IOException {
+        MessageDigest md = sha256();
+        md.update(String.join(" ", COMPILER_OPTIONS).getBytes(StandardCharsets.UTF_8));
+        for (Path src : sourceFiles) {
+            md.update((byte) 0);
+            md.update(contentHash(src).getBytes(StandardCharsets.UTF_8));
         }
-        var compiler = ToolProvider.getSystemJavaCompiler();
-        var fileManager = compiler.getStandardFileManager(null, null, null);
-        var task = compiler.getTask(output, fileManager,
-                null, options, null, fileManager.getJavaFileObjects(fileNames));
-        return task;
+        return HexFormat.of().formatHex(md.digest());
     }
 
-    private void watchFolder(Path p) throws IOException {
-        if (!this.watchedFolders.contains(p)) {
-            p.register(watcher,
-                    StandardWatchEventKinds.ENTRY_MODIFY,
-                    StandardWatchEventKinds.ENTRY_CREATE,
-                    StandardWatchEventKinds.ENTRY_DELETE);
-            this.watchedFolders.add(p);
+    /**
+     * Hash of the file content, only read again once the watcher has seen
+     * the file change.
+     */
+    private String contentHash(Path src)
+            throws IOException {
+        String hash = this.contentHashes.get(src);
+        if (hash == null) {
+            hash = HexFormat.of().formatHex(sha256().digest(Files.readAllBytes(src)));
+            this.contentHashes.put(src, hash);
         }
-        for (Path s : Files.newDirectoryStream(p, Files::isDirectory)) {
-            watchFolder(s);
+        return hash;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
     }
 
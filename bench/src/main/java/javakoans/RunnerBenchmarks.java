@@ -0,0 +1,165 @@
+package javakoans;
+
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.util.DocTrees;
+import com.sun.source.util.JavacTask;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The hot paths of a pass over the koans, each on its own. Run from the
+ * bench folder, with the koans in the folder above it, or the folder given
+ * by the koans.root system property.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RunnerBenchmarks {
+
+    private static final String PASSING_KOAN = """
+            package bench;
+
+            public class Passing {
+
+                /**
+                 * A koan which passes.
+                 */
+                public static void passing() {
+                    assert "koan".length() == 4 : "A koan is four letters.";
+                }
+            }
+            """;
+
+    @Param({"intro/IntroAssertBased.java"})
+    public String koanFile;
+
+    private Path root;
+    private Path koan;
+    private Path passingSource;
+    private Main.CompilationService compiler;
+    private Main.MemoryClasses passingClasses;
+    private Method passing;
+    private Main runner;
+
+    // A parsed koan file, for the discovery of its koans alone.
+    private StandardJavaFileManager fileManager;
+    private DocTrees docTrees;
+    private CompilationUnitTree unit;
+
+    @Setup(Level.Trial)
+    public void setUp()
+            throws Exception {
+        this.root = Paths.get(System.getProperty("koans.root", "..")).toAbsolutePath().normalize();
+        this.koan = this.root.resolve("koans").resolve(this.koanFile);
+        this.compiler = new Main.CompilationService();
+
+        this.passingSource = Files.createTempDirectory("koans-bench").resolve("Passing.java");
+        Files.writeString(this.passingSource, PASSING_KOAN);
+        this.passingClasses = new Main.MemoryClasses(new HashMap<>());
+        Main.Compiled compiled = Main.runJavac(this.compiler, this.passingClasses, List.of(this.passingSource),
+                new StringWriter(), List.of());
+        if (!compiled.success()) {
+            throw new IllegalStateException("The passing koan does not compile");
+        }
+        this.passing = Main.loadClassAgain(Main.class.getClassLoader(), this.passingClasses, "bench.Passing").getMethod("passing");
+
+        Main.Options options = Main.Options.parse(new String[]{"--in-memory", "--grade"});
+        this.runner = Main.forFolder(new Main.Reporter(OutputStream.nullOutputStream()), this.root,
+                this.compiler, options);
+        if (this.runner == null) {
+            throw new IllegalStateException("No koans in " + this.root);
+        }
+
+        JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+        this.fileManager = javac.getStandardFileManager(null, null, StandardCharsets.UTF_8);
+        JavacTask task = (JavacTask) javac.getTask(null, this.fileManager, null, null, null,
+                this.fileManager.getJavaFileObjects(this.koan));
+        this.unit = task.parse().iterator().next();
+        this.docTrees = DocTrees.instance(task);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+            throws IOException {
+        this.compiler.close();
+        this.fileManager.close();
+        Files.deleteIfExists(this.passingSource);
+        Files.deleteIfExists(this.passingSource.getParent());
+    }
+
+    /**
+     * A javac task for one koan file, with its koans found while parsing.
+     */
+    @Benchmark
+    public Main.Compiled compileKoan()
+            throws IOException {
+        return Main.runJavac(this.compiler, new Main.MemoryClasses(new HashMap<>()), List.of(this.koan),
+                new StringWriter(), List.of());
+    }
+
+    /**
+     * Finding the koan methods, and their javadoc, in a parsed file.
+     */
+    @Benchmark
+    public Main.TreeVisitor discoverKoans() {
+        return new Main.TreeVisitor(this.docTrees).visit(this.unit);
+    }
+
+    /**
+     * A fresh class loader, and the koan class loaded with it.
+     */
+    @Benchmark
+    public Class<?> loadClassAgain()
+            throws ClassNotFoundException {
+        return Main.loadClassAgain(Main.class.getClassLoader(), this.passingClasses, "bench.Passing");
+    }
+
+    /**
+     * A koan method which passes, called as the runner calls it.
+     */
+    @Benchmark
+    public Object invokeKoan()
+            throws ReflectiveOperationException {
+        return this.passing.invoke(null);
+    }
+
+    /**
+     * Checking the list files against the koans tree.
+     */
+    @Benchmark
+    public List<Path> checkFiles() {
+        List<Path> helperFiles = new ArrayList<>();
+        List<Path> koanFiles = new ArrayList<>();
+        this.runner.checkFiles(helperFiles, koanFiles);
+        return koanFiles;
+    }
+}
@@ -20,6 +20,7 @@ public class LocalVariables {
      * Note that compiler will generate an error if a local variable is not given
      * a value before the first use;
      *
+     * @level beginner
      */
     public static void declaration() {
 
@@ -43,6 +44,8 @@ public class LocalVariables {
      * In this case , compiler can automatically figure out the data-tpe, and
      * the keyword `var` can be used instead of the data type.
      * Note that 'var' can be used only when a initializer is present.
+     *
+     * @level beginner
      */
     public static void initializers () {
         int size = 10;
@@ -17,6 +17,8 @@ public class PrimitiveTypes {
      *   The '||' and '&&' do short circuited evaluation.
      *  Beside these boolean values are used as conditonals in ?: ( ternay op),
      *  and control flow ( for, do, while, if )
+     *
+     * @level beginner
      */
     public static void booleans() {
 
@@ -49,6 +51,7 @@ public class PrimitiveTypes {
      * or for character literals.
      *
      *
+     * @level beginner
      */
     public static void chars() {
         char a = 'A';
@@ -78,6 +81,8 @@ public class PrimitiveTypes {
      * assigning an short type variable to an integer value.
      *
      * However compiler doesn't warns against overflows.
+     *
+     * @level beginner
      */
     public static void integerals () {
 
@@ -100,6 +105,7 @@ public class PrimitiveTypes {
      * Java also support +Infinity, -Infinity and NaN
      *
      *
+     * @level beginner
      */
     public static void floatings () {
 
@@ -115,4 +121,29 @@ public class PrimitiveTypes {
 
     }
 
+    /**
+     * Every primitive type has a class to go with it, Long for long, Integer
+     * for int and so on, as a collection can only hold objects. Java turns
+     * one into the other when needed, which is called boxing and unboxing.
+     *
+     * Unboxing is cheap, but boxing a value makes a new object, except for a
+     * few small values which are kept ready. Doing it in a loop makes a lot
+     * of garbage, all of it without a single 'new' in the code.
+     *
+     * This koan is right already, and passes once it allocates nothing: the
+     * runner calls it over and over, and counts the bytes it allocates.
+     *
+     * @level intermediate
+     * @alloc 0
+     */
+    public static void boxing() {
+
+        Long sum = 0L;
+        for (int i = 0; i < 1000; i++) {
+            sum += i;
+        }
+
+        assert sum == 499500 : "The sum of all the numbers from 0 to 999";
+    }
+
 }
@@ -17,6 +17,7 @@ public class IntroAssertBased {
      * For now, just replace false by true, and save the file. Use any editor or
      * IDE.
      *
+     * @level beginner
      */
     public static void assertBased() {
         assert false : "A 'true' is needed here.";
@@ -8,6 +8,8 @@ public class IntroCompileBased {
      * In this case, this helpful text is not displayed, but Java compiler
      * generate filename and line number, and you can read the helpful comment
      * in the editor directly.
+     *
+     * @level beginner
      */
     public static void compileBased() {
         assert True : "True is not spelled right.";
@@ -29,6 +31,8 @@ public class IntroCompileBased {
      *
      * The first statement type which you've alredy seen is the assert statement.
      *    assert  (boolean-expression) : (string expression for display message )
+     *
+     * @level beginner
      */
     public static void assertStatement() {
         assert  1 + 1 = 11 : "arithmatic doesn't really work that way";
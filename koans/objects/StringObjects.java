@@ -12,6 +12,7 @@ public class StringObjects {
      * Java  treats string literals a bit specially, creating the objects of class
      * java.lang.String as and when needed.
      *
+     * @level beginner
      */
     public static void stringLiterals() {
 
@@ -51,4 +52,28 @@ public class StringObjects {
         assert multiLineString.equals(singleLineString) : "The closing triple quote need to align with line above it";
 
     }
+
+    /**
+     * A String can not be changed once made, so each '+' makes a new String,
+     * copying both sides into it. Adding to a String in a loop copies all of
+     * it so far on every turn, which adds up fast.
+     *
+     * A java.lang.StringBuilder is like a String which can be added to,
+     * growing as needed, and its toString() makes the String at the end.
+     *
+     * This koan is right already, and passes once it is fast enough: the
+     * runner calls it over and over, and times the calls.
+     *
+     * @level intermediate
+     * @perf 10ms
+     */
+    public static void joiningInALoop() {
+
+        String numbers = "";
+        for (int i = 0; i < 20000; i++) {
+            numbers = numbers + i + ",";
+        }
+
+        assert numbers.length() == 108890 : "All the numbers from 0 to 19999, each with a comma";
+    }
 }